@@ -0,0 +1,434 @@
+package client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+
+import shared.Game;
+import shared.MessageReader;
+import shared.MessageWriter;
+import shared.Protocol;
+import shared.Room;
+import shared.RoomCodec;
+
+/**
+ * Bot is a client with no screen, for putting load on a server. It says HELLO,
+ * keeps a RoomWindow as the game does, and walks about the world a step at a
+ * time, chatting now and then and panning its window as it crosses from one
+ * Room into the next. It times how long the server takes to welcome it, to
+ * send the Rooms it asks for and to send its own footsteps back.
+ *
+ * A Bot reads from the server on a thread of its own and takes its steps on
+ * the threads of its BotFleet. Nothing of it touches AWT, so thousands fit in
+ * one JVM.
+ *
+ * @author Andy Katz
+ *
+ */
+public class Bot implements Runnable {
+	private static final int COLUMNS = Game.width / Game.TILE_SIZE;
+	private static final int ROWS = Game.height / Game.TILE_SIZE;
+	//Cells moved by a step in each Sprite direction
+	private static final int[] STEP_X = { 0, 0, -1, 1 };
+	private static final int[] STEP_Y = { 1, -1, 0, 0 };
+	//Most footsteps waiting to come back before the oldest is forgotten
+	private static final int MAX_PENDING = 256;
+
+	private final BotFleet fleet;
+	private final BotScenario scenario;
+	private final int number;
+	private final Random random;
+
+	private Socket server;
+	private InputStream in;
+	private OutputStream out;
+	private MessageReader message;
+	private MessageWriter writer;
+	private Semaphore sem;
+
+	private RoomWindow window;
+	private int id;
+	//Cell of the bot in the world, and the way it is walking
+	private int cellX;
+	private int cellY;
+	private int direction;
+	private long nextChat;
+	private int lines;
+
+	//Rooms asked for and footsteps sent that have not come back yet, with when
+	private final Map<Long, Long> fetches;
+	private final ArrayDeque<long[]> footsteps;
+	private volatile boolean stopped;
+
+	public Bot(BotFleet f, int n){
+		fleet = f;
+		scenario = f.scenario;
+		number = n;
+		random = new Random();
+
+		message = new MessageReader();
+		writer = new MessageWriter();
+		sem = new Semaphore(1);
+
+		direction = random.nextInt(STEP_X.length);
+		nextChat = System.currentTimeMillis() + (scenario.chatInterval > 0 ? random.nextInt(scenario.chatInterval) : 0);
+		lines = 0;
+
+		fetches = new HashMap<Long, Long>();
+		footsteps = new ArrayDeque<long[]>();
+		stopped = false;
+	}
+
+	/**
+	 * run() connects the bot and reads from the server until it is stopped.
+	 */
+	@Override
+	public void run() {
+		try {
+			connect();
+		} catch (IOException e) {
+			fleet.failed(this, e);
+			stop();
+			return;
+		}
+
+		fleet.started(this);
+		try {
+			while(!stopped){
+				int opcode = message.readFrame(in, Protocol.MAX_SERVER_FRAME);
+				fleet.frames.incrementAndGet();
+				handleMessage(opcode);
+			}
+		} catch (IOException e) {
+			if(!stopped)
+				fleet.dropped(this, e);
+			stop();
+		}
+	}
+
+	/**
+	 * step() takes one step, and sends a chat line if it is time to.
+	 */
+	public void step() {
+		if(stopped)
+			return;
+
+		try {
+			walk();
+			chat();
+		} catch (IOException e) {
+			if(!stopped)
+				fleet.dropped(this, e);
+			stop();
+		}
+	}
+
+	/**
+	 * stop() disconnects the bot.
+	 */
+	public void stop() {
+		stopped = true;
+		try {
+			if(server != null)
+				server.close();
+		} catch (IOException e) {
+		}
+	}
+
+	/**
+	 * getNumber() gets the number of the bot in its fleet.
+	 *
+	 * @return the number
+	 */
+	public int getNumber() {
+		return number;
+	}
+
+	/**
+	 * connect() is a private helper that opens the session with the server,
+	 * says HELLO, waits for WELCOME and starts downloading the Rooms around
+	 * the bot.
+	 *
+	 * @throws IOException if the connection fails
+	 */
+	private void connect() throws IOException {
+		long start = System.nanoTime();
+		server = new Socket(scenario.host, scenario.port);
+		server.setTcpNoDelay(true);
+		in = new BufferedInputStream(server.getInputStream());
+		out = new BufferedOutputStream(server.getOutputStream());
+
+		writer.begin(Protocol.HELLO)
+			.writeVarInt(Protocol.VERSION)
+			.writeVarInt(scenario.window)
+			.writeTo(out);
+		out.flush();
+
+		if(message.readFrame(in, Protocol.MAX_SERVER_FRAME) != Protocol.WELCOME)
+			throw new ProtocolException("Expected WELCOME");
+
+		int version = message.readVarInt();
+		if(version < Protocol.MIN_VERSION || version > Protocol.VERSION)
+			throw new ProtocolException("Unsupported protocol version " + version);
+
+		id = message.readVarInt();
+		int x = message.readVarInt();
+		int y = message.readVarInt();
+		fleet.connects.add(System.nanoTime() - start);
+
+		cellX = x / Game.TILE_SIZE;
+		cellY = y / Game.TILE_SIZE;
+		synchronized(this){
+			window = new RoomWindow(x, y, new TimedDownloader(server, sem));
+		}
+	}
+
+	/**
+	 * handleMessage() is a private helper that handles a message from the server
+	 * as the game does, and notes the Rooms and footsteps that came back.
+	 *
+	 * @param opcode the opcode of the message
+	 * @throws IOException if the message is malformed
+	 */
+	private void handleMessage(int opcode) throws IOException {
+		if(opcode == Protocol.PING){
+			long token = message.readVarLong();
+			sem.acquireUninterruptibly();
+			try {
+				writer.begin(Protocol.PONG).writeVarLong(token).writeTo(out);
+				out.flush();
+			} finally {
+				sem.release();
+			}
+			return;
+		}
+
+		synchronized(this){
+			if(opcode == Protocol.ROOM){
+				Room room = RoomCodec.decode(message);
+				fetched(room.getGridX(), room.getGridY());
+				window.updateRoom(room);
+			}
+			else if(opcode == Protocol.ROOM_DELTA){
+				int gridX = message.readVarInt();
+				int gridY = message.readVarInt();
+				fetched(gridX, gridY);
+				window.applyDelta(gridX, gridY, message);
+			}
+			else if(opcode == Protocol.HISTORY){
+				int gridX = message.readVarInt();
+				int gridY = message.readVarInt();
+				window.applyHistory(gridX, gridY, message);
+			}
+			else if(opcode == Protocol.FOOTSTEP_BATCH){
+				int gridX = message.readVarInt();
+				int gridY = message.readVarInt();
+				long newest = message.readVarLong();
+
+				int cells = message.readVarInt();
+				for(int i = 0; i < cells; i++){
+					int x = message.readVarInt();
+					int y = message.readVarInt();
+					long time = newest - message.readVarLong();
+					window.updateFootstep(gridX, gridY, x, y, time);
+				}
+
+				int players = message.readVarInt();
+				for(int i = 0; i < players; i++){
+					int player = message.readVarInt();
+					message.readVarInt();
+					int x = message.readVarInt();
+					int y = message.readVarInt();
+					if(player == id)
+						echoed(gridX, gridY, x, y);
+				}
+			}
+			else if(opcode == Protocol.MESSAGE_UPDATE){
+				int gridX = message.readVarInt();
+				int gridY = message.readVarInt();
+				window.inputMessage(gridX, gridY, message.readString());
+			}
+		}
+	}
+
+	/**
+	 * walk() is a private helper that takes a step the way the bot is walking,
+	 * sometimes turning first. A step into the next Room pans the window; where
+	 * there is no next Room the bot turns instead of stepping.
+	 *
+	 * @throws IOException if the footstep cannot be sent
+	 */
+	private synchronized void walk() throws IOException {
+		if(window == null || window.window[1][1] == null)
+			return;
+
+		if(random.nextInt(100) < scenario.turnChance)
+			direction = random.nextInt(STEP_X.length);
+
+		int nextX = cellX + STEP_X[direction];
+		int nextY = cellY + STEP_Y[direction];
+		if(nextX < 0 || nextY < 0
+				|| (nextX / COLUMNS != cellX / COLUMNS || nextY / ROWS != cellY / ROWS) && !pan(direction)){
+			direction = random.nextInt(STEP_X.length);
+			return;
+		}
+		cellX = nextX;
+		cellY = nextY;
+
+		int gridX = cellX / COLUMNS;
+		int gridY = cellY / ROWS;
+		int x = cellX % COLUMNS;
+		int y = cellY % ROWS;
+		long time = System.currentTimeMillis();
+		if(!window.updateFootstep(x, y, time))
+			return;
+
+		sem.acquireUninterruptibly();
+		try {
+			writer.begin(Protocol.FOOTSTEP)
+				.writeVarInt(gridX)
+				.writeVarInt(gridY)
+				.writeVarInt(x)
+				.writeVarInt(y)
+				.writeVarLong(time)
+				.writeTo(out);
+			out.flush();
+		} finally {
+			sem.release();
+		}
+		fleet.steps.incrementAndGet();
+
+		footsteps.add(new long[] { gridX, gridY, x, y, System.nanoTime() });
+		if(footsteps.size() > MAX_PENDING)
+			footsteps.poll();
+	}
+
+	/**
+	 * chat() is a private helper that sends a chat line to the Room the bot is
+	 * in, if it is time for one.
+	 *
+	 * @throws IOException if the line cannot be sent
+	 */
+	private void chat() throws IOException {
+		long now = System.currentTimeMillis();
+		if(scenario.chatInterval <= 0 || now < nextChat)
+			return;
+		nextChat = now + scenario.chatInterval;
+
+		String line = "bot" + number + ": line " + (++lines);
+		synchronized(this){
+			if(window == null || window.window[1][1] == null)
+				return;
+			window.inputMessage(cellX / COLUMNS, cellY / ROWS, line);
+		}
+
+		sem.acquireUninterruptibly();
+		try {
+			writer.begin(Protocol.MESSAGE).writeString(line).writeTo(out);
+			out.flush();
+		} finally {
+			sem.release();
+		}
+		fleet.lines.incrementAndGet();
+	}
+
+	/**
+	 * pan() is a private helper that pans the window one Room the given way.
+	 *
+	 * @param dir the direction, as one of the Sprite direction constants
+	 * @return false if the Room that way is not loaded
+	 */
+	private boolean pan(int dir) {
+		if(dir == Sprite.DIRECTION_LEFT && window.canShiftLeft())
+			window.shiftLeft();
+		else if(dir == Sprite.DIRECTION_RIGHT && window.canShiftRight())
+			window.shiftRight();
+		else if(dir == Sprite.DIRECTION_UP && window.canShiftUp())
+			window.shiftUp();
+		else if(dir == Sprite.DIRECTION_DOWN && window.canShiftDown())
+			window.shiftDown();
+		else
+			return false;
+		return true;
+	}
+
+	/**
+	 * fetched() is a private helper that times a Room that came back.
+	 *
+	 * @param gridX the x-coordinate of the Room
+	 * @param gridY the y-coordinate of the Room
+	 */
+	private void fetched(int gridX, int gridY) {
+		Long asked = fetches.remove(key(gridX, gridY));
+		if(asked != null)
+			fleet.fetches.add(System.nanoTime() - asked.longValue());
+	}
+
+	/**
+	 * echoed() is a private helper that times the newest footstep the server
+	 * sent back. The footsteps before it were sent back in the same or an
+	 * earlier batch, so they are forgotten.
+	 *
+	 * @param gridX the x-coordinate of the Room
+	 * @param gridY the y-coordinate of the Room
+	 * @param x the x-coordinate of the cell
+	 * @param y the y-coordinate of the cell
+	 */
+	private void echoed(int gridX, int gridY, int x, int y) {
+		long sent = -1;
+		int taken = 0;
+		int i = 0;
+		for(long[] step : footsteps){
+			i++;
+			if(step[0] == gridX && step[1] == gridY && step[2] == x && step[3] == y){
+				sent = step[4];
+				taken = i;
+			}
+		}
+		if(sent < 0)
+			return;
+
+		for(i = 0; i < taken; i++){
+			footsteps.poll();
+		}
+		fleet.echoes.add(System.nanoTime() - sent);
+	}
+
+	/**
+	 * key() is a private helper that makes the key of a Room.
+	 *
+	 * @param gridX the x-coordinate of the Room
+	 * @param gridY the y-coordinate of the Room
+	 * @return the key
+	 */
+	private static Long key(int gridX, int gridY){
+		return Long.valueOf(((long) gridX << 32) | (gridY & 0xFFFFFFFFL));
+	}
+
+
+
+	/**
+	 * TimedDownloader is a RoomDownloader that notes when each Room was asked for.
+	 */
+	private class TimedDownloader extends RoomDownloader {
+
+		TimedDownloader(Socket serverSocket, Semaphore mySem){
+			super(serverSocket, mySem);
+		}
+
+		@Override
+		public Room getRoom(int x, int y, Room known) {
+			fetches.put(key(x, y), Long.valueOf(System.nanoTime()));
+			return super.getRoom(x, y, known);
+		}
+	}
+}
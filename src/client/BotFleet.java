@@ -0,0 +1,192 @@
+package client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import shared.Percentiles;
+
+/**
+ * BotFleet puts load on a server by running many Bots in one JVM, to see how
+ * many players it holds before an event. The bots connect evenly spread over
+ * the ramp-up, walk and chat for the duration of the scenario and are then
+ * disconnected, and the fleet reports how long connecting, fetching Rooms and
+ * getting footsteps back took.
+ *
+ * Run it with the settings of the scenario as system properties:
+ * java -Dbots.count=2000 -Dbots.duration=120 client.BotFleet
+ *
+ * @author Andy Katz
+ *
+ */
+public class BotFleet {
+	//Stack of the thread each bot reads on; a bot needs little
+	private static final long READER_STACK = 256 * 1024;
+	//Most failures printed, so a refused fleet does not flood the console
+	private static final int MAX_PRINTED = 10;
+
+	final BotScenario scenario;
+	final Percentiles connects;
+	final Percentiles fetches;
+	final Percentiles echoes;
+	final AtomicLong steps;
+	final AtomicLong lines;
+	final AtomicLong frames;
+
+	private final AtomicInteger connected;
+	private final AtomicInteger failures;
+	private final AtomicInteger drops;
+	private final ScheduledExecutorService timer;
+	private final List<Bot> bots;
+	private final Random random;
+
+	public BotFleet(BotScenario s){
+		scenario = s;
+		connects = new Percentiles();
+		fetches = new Percentiles();
+		echoes = new Percentiles();
+		steps = new AtomicLong();
+		lines = new AtomicLong();
+		frames = new AtomicLong();
+
+		connected = new AtomicInteger();
+		failures = new AtomicInteger();
+		drops = new AtomicInteger();
+		timer = Executors.newScheduledThreadPool(Math.max(1, s.threads), new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "bot steps " + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		bots = new ArrayList<Bot>();
+		random = new Random();
+	}
+
+	public static void main(String[] args) {
+		BotFleet fleet = new BotFleet(new BotScenario());
+		try {
+			fleet.run();
+		} catch (InterruptedException e) {
+			fleet.stop();
+		}
+		System.out.println(fleet.report());
+	}
+
+	/**
+	 * run() runs the scenario to its end.
+	 *
+	 * @throws InterruptedException if interrupted while the bots run
+	 */
+	public void run() throws InterruptedException {
+		int count = Math.max(0, scenario.count);
+		System.out.println("Starting " + count + " bots against " + scenario.host + ":" + scenario.port
+				+ " over " + scenario.rampUp + "ms");
+
+		for(int i = 0; i < count; i++){
+			final Bot bot = new Bot(this, i);
+			bots.add(bot);
+			timer.schedule(new Runnable() {
+				public void run() {
+					Thread t = new Thread(null, bot, "bot " + bot.getNumber(), READER_STACK);
+					t.setDaemon(true);
+					t.start();
+				}
+			}, (long) scenario.rampUp * i / Math.max(1, count), TimeUnit.MILLISECONDS);
+		}
+
+		if(scenario.reportInterval > 0){
+			timer.scheduleAtFixedRate(new Runnable() {
+				public void run() {
+					System.out.println(progress());
+				}
+			}, scenario.reportInterval, scenario.reportInterval, TimeUnit.SECONDS);
+		}
+
+		Thread.sleep(scenario.rampUp + TimeUnit.SECONDS.toMillis(scenario.duration));
+		stop();
+	}
+
+	/**
+	 * stop() disconnects every bot and stops taking steps.
+	 */
+	public void stop() {
+		timer.shutdownNow();
+		for(Bot bot : bots){
+			bot.stop();
+		}
+	}
+
+	/**
+	 * started() has a bot that just connected take steps from now on.
+	 *
+	 * @param bot the bot
+	 */
+	void started(final Bot bot) {
+		connected.incrementAndGet();
+		int interval = Math.max(1, scenario.stepInterval);
+		try {
+			timer.scheduleAtFixedRate(new Runnable() {
+				public void run() {
+					bot.step();
+				}
+			}, random.nextInt(interval), interval, TimeUnit.MILLISECONDS);
+		} catch (RuntimeException e) {
+			//The scenario ended while the bot was connecting
+			bot.stop();
+		}
+	}
+
+	/**
+	 * failed() counts a bot that could not connect.
+	 *
+	 * @param bot the bot
+	 * @param e what went wrong
+	 */
+	void failed(Bot bot, IOException e) {
+		if(failures.incrementAndGet() <= MAX_PRINTED)
+			System.err.println("Bot " + bot.getNumber() + " could not connect: " + e.getMessage());
+	}
+
+	/**
+	 * dropped() counts a bot that lost its connection.
+	 *
+	 * @param bot the bot
+	 * @param e what went wrong
+	 */
+	void dropped(Bot bot, IOException e) {
+		if(drops.incrementAndGet() <= MAX_PRINTED)
+			System.err.println("Bot " + bot.getNumber() + " was disconnected: " + e.getMessage());
+	}
+
+	/**
+	 * progress() describes the fleet so far in one line.
+	 *
+	 * @return the line
+	 */
+	public String progress() {
+		return connected.get() + " connected, " + failures.get() + " failed, " + drops.get() + " dropped, "
+			+ steps.get() + " steps, " + lines.get() + " lines, " + frames.get() + " frames received";
+	}
+
+	/**
+	 * report() describes the whole run.
+	 *
+	 * @return the report
+	 */
+	public String report() {
+		return progress() + "\n"
+			+ "Connect (" + connects.count() + "): " + connects.report(1000, "us") + "\n"
+			+ "Room fetch (" + fetches.count() + "): " + fetches.report(1000, "us") + "\n"
+			+ "Footstep echo (" + echoes.count() + "): " + echoes.report(1000, "us");
+	}
+}
@@ -0,0 +1,43 @@
+package client;
+
+/**
+ * BotScenario holds the settings a BotFleet runs with. Every setting can be
+ * overridden with a system property, for example -Dbots.count=2000.
+ *
+ * @author Andy Katz
+ *
+ */
+public class BotScenario {
+	public final String host;
+	public final int port;
+	public final int count;
+	public final int rampUp;
+	public final int duration;
+	public final int stepInterval;
+	public final int chatInterval;
+	public final int turnChance;
+	public final int window;
+	public final int threads;
+	public final int reportInterval;
+
+	public BotScenario(){
+		host = System.getProperty("bots.host", "localhost");
+		port = Integer.getInteger("bots.port", 2219);
+		count = Integer.getInteger("bots.count", 100);
+		//Milliseconds over which the bots connect, evenly spaced
+		rampUp = Integer.getInteger("bots.rampUp", 10000);
+		//Seconds the bots stay connected once the last has connected
+		duration = Integer.getInteger("bots.duration", 60);
+		//Milliseconds between the steps of a bot, and between its chat lines, 0 for no chat
+		stepInterval = Integer.getInteger("bots.stepInterval", 250);
+		chatInterval = Integer.getInteger("bots.chatInterval", 10000);
+		//Percent chance on each step that a bot walks a new way
+		turnChance = Integer.getInteger("bots.turnChance", 15);
+		//How old a footstep the bots draw, in milliseconds, as the game does
+		window = Integer.getInteger("bots.window", 10000);
+		//Threads that take the steps of all the bots
+		threads = Integer.getInteger("bots.threads", Runtime.getRuntime().availableProcessors());
+		//Seconds between progress reports, 0 for none
+		reportInterval = Integer.getInteger("bots.reportInterval", 10);
+	}
+}
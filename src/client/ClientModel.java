@@ -1,13 +1,19 @@
 package client;
 import java.awt.Component;
 import java.awt.image.BufferedImage;
-import java.io.DataOutputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
 import java.net.Socket;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Semaphore;
 
 import shared.Game;
+import shared.MessageReader;
+import shared.MessageWriter;
+import shared.Protocol;
 import shared.Room;
 
 /**
@@ -26,7 +32,8 @@ public class ClientModel {
 	public boolean canChat;
 	
 	private Socket server;
-	private DataOutputStream out;
+	private OutputStream out;
+	private MessageWriter writer;
 	
 	private Semaphore sem;
 	
@@ -40,10 +47,11 @@ public class ClientModel {
 		
 		server = serverSocket;
 		sem = new Semaphore(1);
+		writer = new MessageWriter();
 		window = new RoomWindow(xPos, yPos, server, sem);
 		
 		try {
-			out = new DataOutputStream(server.getOutputStream());
+			out = new BufferedOutputStream(server.getOutputStream());
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -78,8 +86,13 @@ public class ClientModel {
 				int gridX = xPos / Game.width;
 				int gridY = yPos / Game.height;
 				
-				out.writeBytes("FOOTSTEP" + "\n" + gridX + "\n" + gridY + "\n" + x + "\n" + y + "\n"
-						+ currentTimeMillis + "\n");
+				writer.begin(Protocol.FOOTSTEP)
+					.writeVarInt(gridX)
+					.writeVarInt(gridY)
+					.writeVarInt(x)
+					.writeVarInt(y)
+					.writeVarLong(currentTimeMillis)
+					.writeTo(out);
 				out.flush();
 				sem.release();
 			} catch (Exception e){
@@ -124,12 +137,32 @@ public class ClientModel {
 	/**
 	 * getHistory() gets the history for the current room.
 	 * 
-	 * @return the history as an ArrayList of Strings
+	 * @return the history as a List of Strings
 	 */
-	public ArrayList<String> getHistory() {
+	public List<String> getHistory() {
 		return window.getHistory();
 	}
 	
+	/**
+	 * requestOlderHistory() asks the server for the chat lines of the current room
+	 * older than those loaded.
+	 */
+	public void requestOlderHistory() {
+		window.requestOlderHistory();
+	}
+	
+	/**
+	 * addOlderHistory() adds a page of older chat lines that the server sent.
+	 * 
+	 * @param gridX the x-coordinate of the Room
+	 * @param gridY the y-coordinate of the Room
+	 * @param page the page
+	 * @throws ProtocolException if the page is malformed
+	 */
+	public void addOlderHistory(int gridX, int gridY, MessageReader page) throws ProtocolException {
+		window.applyHistory(gridX, gridY, page);
+	}
+	
 	/**
 	 * sendMessage() sends a message to the server for chatting.
 	 * Stores in the model.
@@ -144,7 +177,7 @@ public class ClientModel {
 		try{
 			sem.acquire();
 			
-			out.writeBytes("MESSAGE" + "\n" + input + "\n");
+			writer.begin(Protocol.MESSAGE).writeString(input).writeTo(out);
 			out.flush();
 			sem.release();
 		} catch (Exception e){
@@ -153,6 +186,23 @@ public class ClientModel {
 		
 	}
 	
+	/**
+	 * sendPong() answers a PING from the server.
+	 * 
+	 * @param token the token of the PING
+	 */
+	public void sendPong(long token) {
+		try{
+			sem.acquire();
+			
+			writer.begin(Protocol.PONG).writeVarLong(token).writeTo(out);
+			out.flush();
+			sem.release();
+		} catch (Exception e){
+			return;
+		}
+	}
+	
 	/**
 	 * inputMessage() inputs a message into a given room.
 	 * 
@@ -266,6 +316,18 @@ public class ClientModel {
 		window.updateRoom(newRoom);
 	}
 	
+	/**
+	 * applyRoomDelta() applies the changes to a room that the server sent.
+	 * 
+	 * @param gridX the x-coordinate of the Room
+	 * @param gridY the y-coordinate of the Room
+	 * @param delta the delta
+	 * @throws ProtocolException if the delta is malformed
+	 */
+	public void applyRoomDelta(int gridX, int gridY, MessageReader delta) throws ProtocolException {
+		window.applyDelta(gridX, gridY, delta);
+	}
+	
 	
 	
 	
@@ -381,6 +443,7 @@ public class ClientModel {
 
 	/**
 	 * updatePlayerPosition() updates the position of the given player.
+	 * The player's own footsteps come back from the server and are skipped.
 	 * 
 	 * @param gridX the x-coordinate of the room the player is in
 	 * @param gridY the y-coordinate of the room the player is in
@@ -389,6 +452,9 @@ public class ClientModel {
 	 * @param id the player's id
 	 */
 	public void updatePlayerPosition(int gridX, int gridY, int x, int y, int id, int type) {
+		if(id == player.getID())
+			return;
+		
 		boolean exists= false;
 		int xReal = gridX * Game.width + x * Game.TILE_SIZE;
 		int yReal = gridY * Game.height + y * Game.TILE_SIZE;
@@ -1,13 +1,14 @@
 package client;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.BufferedInputStream;
+import java.io.InputStream;
 import java.net.Socket;
-import java.net.UnknownHostException;
 
 import javax.swing.JApplet;
-import javax.swing.JTextField;
+
+import shared.MessageReader;
+import shared.MessageWriter;
+import shared.Protocol;
 
 public class ConnectionTestApplet extends JApplet {
 	
@@ -19,20 +20,14 @@ public class ConnectionTestApplet extends JApplet {
 			
 			System.out.println("Connected to server");
 			
-			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-			
-			int newPort = Integer.parseInt(in.readLine());
-			System.out.println("Port: " + newPort);
-			
-			socket = null;
-			socket = new Socket("localhost", newPort);
-			
-			System.out.println("Connection established");
+			new MessageWriter().begin(Protocol.HELLO).writeVarInt(Protocol.VERSION).writeVarInt(0).writeTo(socket.getOutputStream());
 			
-			in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			MessageReader message = new MessageReader();
 			
 			while(true){
-				System.out.println(in.readLine());
+				int opcode = message.readFrame(in, Protocol.MAX_SERVER_FRAME);
+				System.out.println("Opcode " + opcode + ", " + message.remaining() + " bytes");
 			}
 			
 		} catch (Exception e) {
@@ -9,12 +9,12 @@ package client;
 import java.awt.Dimension;
 
 import java.awt.Graphics;
-import java.io.BufferedReader;
-import java.io.DataOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
 import java.net.Socket;
 import java.net.UnknownHostException;
 
@@ -22,7 +22,10 @@ import javax.swing.JApplet;
 import javax.swing.JFrame;
 
 import shared.Game;
-import shared.Room;
+import shared.MessageReader;
+import shared.MessageWriter;
+import shared.Protocol;
+import shared.RoomCodec;
 
 
 public class GameApplet extends JApplet implements Runnable{
@@ -35,9 +38,8 @@ public class GameApplet extends JApplet implements Runnable{
 	private final int height = Game.height+1;
 	
 	private Socket server;
-	private BufferedReader in;
-	private Socket object;
-	private ObjectInputStream objIn;
+	private InputStream in;
+	private MessageReader message;
 	
 	private ClientModel model;
 	private CanvasDrawer canvas;
@@ -68,12 +70,12 @@ public class GameApplet extends JApplet implements Runnable{
 		}
 		
 		try{
-			int port = initializeConnection();
-			getInitializationInfo(port);
+			initializeConnection();
+			getInitializationInfo();
 			
 			while(true){
-				String message = in.readLine();
-				handleMessage(message);
+				int opcode = message.readFrame(in, Protocol.MAX_SERVER_FRAME);
+				handleMessage(opcode);
 			}
 		} catch (Exception e){
 			System.err.println("Connection failed " + e.getMessage());
@@ -83,18 +85,21 @@ public class GameApplet extends JApplet implements Runnable{
 	}
 
 	/**
-	 * initializeConnection() opens a session with the server and gets the port
-	 * to be used for communication.
-	 * 
-	 * @return the port for communication
+	 * initializeConnection() opens the session with the server and says HELLO.
+	 * Every message, including Rooms, is exchanged over this one connection.
 	 */
-	private int initializeConnection() throws Exception{
-		Socket server = new Socket(SERVER_NAME, SERVER_PORT);
-		BufferedReader in = new BufferedReader(new InputStreamReader(server.getInputStream()));
-		
-		int port = Integer.parseInt(in.readLine());
+	private void initializeConnection() throws Exception{
+		server = new Socket(SERVER_NAME, SERVER_PORT);
+		server.setTcpNoDelay(true);
+		in = new BufferedInputStream(server.getInputStream());
+		message = new MessageReader();
 		
-		return port;
+		OutputStream out = new BufferedOutputStream(server.getOutputStream());
+		new MessageWriter().begin(Protocol.HELLO)
+			.writeVarInt(Protocol.VERSION)
+			.writeVarInt(GameScreen.opacityThreshold)
+			.writeTo(out);
+		out.flush();
 	}
 	
 	/**
@@ -103,20 +108,18 @@ public class GameApplet extends JApplet implements Runnable{
 	 * 
 	 * @throws an exception if the connection fails
 	 */
-	private void getInitializationInfo(int port) throws Exception{
-			server = new Socket(SERVER_NAME, port);
-			in = new BufferedReader(new InputStreamReader(server.getInputStream()));
-			int id = Integer.parseInt(in.readLine());
-			int x = Integer.parseInt(in.readLine());
-			int y = Integer.parseInt(in.readLine());
-			int type = Integer.parseInt(in.readLine());
+	private void getInitializationInfo() throws Exception{
+			if(message.readFrame(in, Protocol.MAX_SERVER_FRAME) != Protocol.WELCOME)
+				throw new ProtocolException("Expected WELCOME");
 			
-			int objectPort = Integer.parseInt(in.readLine());
-			object = new Socket(SERVER_NAME, objectPort);
-			ObjectOutputStream objOut = new ObjectOutputStream(object.getOutputStream());
-			objOut.flush();
-			objIn = new ObjectInputStream(object.getInputStream());
+			int version = message.readVarInt();
+			if(version < Protocol.MIN_VERSION || version > Protocol.VERSION)
+				throw new ProtocolException("Unsupported protocol version " + version);
 			
+			int id = message.readVarInt();
+			int x = message.readVarInt();
+			int y = message.readVarInt();
+			int type = message.readVarInt();
 			
 			Sprite player = new Sprite(x, y, canvas.getPlayerName(), type, id);
 			model = new ClientModel(x, y, player, server);
@@ -126,57 +129,58 @@ public class GameApplet extends JApplet implements Runnable{
 	/**
 	 * handleMessage handles a message from the server.
 	 * 
-	 * @param message the message to be handled
+	 * @param opcode the opcode of the message to be handled
+	 * @throws IOException if the message is malformed
 	 */
-	private void handleMessage(String message) {
-		if ("ROOM".equals(message)){
-			try {
-				Room newRoom = (Room) objIn.readObject();
-				if(newRoom != null){
-					model.updateRoom(newRoom);
-				}
-				
-			} catch (ClassNotFoundException e) {
-				e.printStackTrace();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
+	private void handleMessage(int opcode) throws IOException {
+		if (opcode == Protocol.PING){
+			model.sendPong(message.readVarLong());
+		}
+		else if (opcode == Protocol.ROOM){
+			model.updateRoom(RoomCodec.decode(message));
+		}
+		else if (opcode == Protocol.ROOM_DELTA){
+			int gridX = message.readVarInt();
+			int gridY = message.readVarInt();
+			model.applyRoomDelta(gridX, gridY, message);
+		}
+		else if (opcode == Protocol.HISTORY){
+			int gridX = message.readVarInt();
+			int gridY = message.readVarInt();
+			model.addOlderHistory(gridX, gridY, message);
 		}
 		
 		if(model.isLoading()){
 			return;
 		}
-		else if ("FOOTSTEP".equals(message)){
-			try {
-				int gridX = Integer.parseInt(in.readLine());
-				int gridY = Integer.parseInt(in.readLine());
-				int x = Integer.parseInt(in.readLine());
-				int y = Integer.parseInt(in.readLine());
-				long time = Long.parseLong(in.readLine());
-				int id = Integer.parseInt(in.readLine());
-				int type = Integer.parseInt(in.readLine());
-				
+		else if (opcode == Protocol.FOOTSTEP_BATCH){
+			int gridX = message.readVarInt();
+			int gridY = message.readVarInt();
+			long newest = message.readVarLong();
+			
+			int cells = message.readVarInt();
+			for(int i = 0; i < cells; i++){
+				int x = message.readVarInt();
+				int y = message.readVarInt();
+				long time = newest - message.readVarLong();
 				model.updateFootstep(gridX, gridY, x, y, time);
+			}
+			
+			int players = message.readVarInt();
+			for(int i = 0; i < players; i++){
+				int id = message.readVarInt();
+				int type = message.readVarInt();
+				int x = message.readVarInt();
+				int y = message.readVarInt();
 				model.updatePlayerPosition(gridX, gridY, x, y, id, type);
-				
-			} catch (NumberFormatException e) {
-				e.printStackTrace();
-			} catch (IOException e) {
-				e.printStackTrace();
 			}
 		}
-		else if ("MESSAGE".equals(message)){
-			try {
-				int gridX = Integer.parseInt(in.readLine());
-				int gridY = Integer.parseInt(in.readLine());
-				String line = in.readLine();
-				
-				model.inputMessage(gridX, gridY, line);
-			} catch (NumberFormatException e) {
-				e.printStackTrace();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
+		else if (opcode == Protocol.MESSAGE_UPDATE){
+			int gridX = message.readVarInt();
+			int gridY = message.readVarInt();
+			String line = message.readString();
+			
+			model.inputMessage(gridX, gridY, line);
 		}
 		
 	}
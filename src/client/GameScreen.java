@@ -10,6 +10,7 @@ import java.awt.image.RescaleOp;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
 
 import javax.imageio.ImageIO;
 import javax.swing.Timer;
@@ -45,7 +46,7 @@ public class GameScreen implements Runnable{
 	static final int SCROLL_DOWN_Y1 = 174;
 	static final int SCROLL_DOWN_Y2 = 205;
 	
-	private final int opacityThreshold = 10000;
+	static final int opacityThreshold = 10000;
 	private final int chunks = 2;
 	private final int scroll = 8;
 	
@@ -278,12 +279,13 @@ public class GameScreen implements Runnable{
 		bufferGraphics.setFont(new Font("Courier New", Font.PLAIN, 12));
 		
 		int startLine = CHAT_WINDOW_TOP + 10 * LINE_HEIGHT;
-		int curLine = model.getHistory().size() - chatScroll -1;
+		List<String> history = model.getHistory();
+		int curLine = history.size() - chatScroll -1;
 		for (int i = 0; i < 10; i++){
 			if(curLine < 0)
 				break;
 			
-			String line = model.getHistory().get(curLine);
+			String line = history.get(curLine);
 			bufferGraphics.drawString(line, TEXT_MARGIN, startLine);
 			startLine -= LINE_HEIGHT;
 			curLine -= 1;
@@ -353,11 +355,15 @@ public class GameScreen implements Runnable{
 	}
 	
 	/**
-	 * chatScrollUp() scrolls the chat window up one line.
+	 * chatScrollUp() scrolls the chat window up one line, and asks for older
+	 * lines once the top of those loaded is reached.
 	 */
 	public void chatScrollUp(){
 		if(chatScroll < model.getHistory().size() - 10)
 			chatScroll ++;
+		
+		if(chatScroll >= model.getHistory().size() - 10)
+			model.requestOlderHistory();
 	}
 	
 	/**
@@ -1,22 +1,26 @@
 package client;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.DataOutputStream;
+import java.io.OutputStream;
 import java.net.Socket;
 import java.util.concurrent.Semaphore;
 
+import shared.MessageWriter;
+import shared.Protocol;
 import shared.Room;
 
-public class RoomDownloader implements Runnable{ 
+/**
+ * RoomDownloader asks the server for Rooms and pages of chat history. It may
+ * be used from several threads at once: each request is written whole under
+ * the semaphore guarding the socket, and nothing is kept between requests.
+ * 
+ * @author Andy Katz
+ *
+ */
+public class RoomDownloader { 
 	
 	private Socket server;
 	private Semaphore sem;
-	
-	private int gridX;
-	private int gridY;
-	
-	private Room getRoom = null;
 
 	public RoomDownloader(Socket serverSocket, Semaphore mySem) {
 		server = serverSocket;
@@ -24,41 +28,76 @@ public class RoomDownloader implements Runnable{
 	}
 
 	/**
-	 * getRoom() launches a thread to retrieve the specified room.
+	 * getRoom() asks the server for the specified room.
 	 * 
 	 * @param x the x-coordinate of the Room
 	 * @param y the y-coordinate of the Room
-	 * @return a reference to the Room being downloaded
+	 * @return null, as the Room is put in place when the server sends it
 	 */
 	public Room getRoom(int x, int y) {
-		gridX = x;
-		gridY = y;
-		
-		Thread t = new Thread(this);
-		t.start();
-		try {
-			t.join();
-		} catch (InterruptedException e) {
-			e.printStackTrace();
-		}
-		
-		return getRoom;
+		return getRoom(x, y, null);
+	}
+	
+	/**
+	 * getRoom() asks the server for the specified room. If a copy of the room
+	 * is known only the changes since that copy are asked for.
+	 * 
+	 * @param x the x-coordinate of the Room
+	 * @param y the y-coordinate of the Room
+	 * @param known the copy of the Room that is held, or null
+	 * @return null, as the Room is put in place when the server sends it
+	 */
+	public Room getRoom(int x, int y, Room known) {
+		MessageWriter writer = new MessageWriter();
+		writer.begin(Protocol.REQUEST_ROOM)
+			.writeVarInt(x)
+			.writeVarInt(y)
+			.writeVarLong(known == null ? 0 : known.getEpoch())
+			.writeVarLong(known == null ? 0 : known.getSyncedVersion());
+		send(writer);
+		return null;
 	}
 
-	@Override
-	public void run() {
+	/**
+	 * requestHistory() asks for a page of the chat lines of a room older than
+	 * the given line.
+	 * 
+	 * @param x the x-coordinate of the Room
+	 * @param y the y-coordinate of the Room
+	 * @param before the number of the oldest line held
+	 * @param count the most lines to send
+	 */
+	public void requestHistory(int x, int y, long before, int count) {
+		MessageWriter writer = new MessageWriter();
+		writer.begin(Protocol.REQUEST_HISTORY)
+			.writeVarInt(x)
+			.writeVarInt(y)
+			.writeVarLong(before)
+			.writeVarInt(count);
+		send(writer);
+	}
+	
+	/**
+	 * send() is a private helper that writes a request to the server, holding
+	 * the semaphore so it is not mixed up with other frames.
+	 * 
+	 * @param writer the writer holding the request
+	 */
+	private void send(MessageWriter writer) {
 		try {
-			DataOutputStream out = new DataOutputStream(server.getOutputStream());
+			OutputStream out = server.getOutputStream();
 			sem.acquire();
-			out.writeBytes("REQUEST ROOM" + "\n" + gridX + "\n" + gridY +"\n");
-			out.flush();
-			sem.release();
+			try {
+				writer.writeTo(out);
+				out.flush();
+			} finally {
+				sem.release();
+			}
 			
 		} catch (IOException e) {
 			e.printStackTrace();
 		} catch (InterruptedException e) {
 			e.printStackTrace();
 		}
-		
 	}
 }
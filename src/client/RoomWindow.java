@@ -1,11 +1,16 @@
 package client;
 
+import java.net.ProtocolException;
 import java.net.Socket;
-import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Semaphore;
 
 import shared.Game;
+import shared.MessageReader;
 import shared.Room;
+import shared.RoomCodec;
 
 /**
  * RoomWindow holds a grid of Rooms to service the CanvasDrawer
@@ -17,20 +22,44 @@ import shared.Room;
 public class RoomWindow {
 	private static final int width = Game.width;
 	private static final int height = Game.height;
+	private static final int RECENT_ROOMS = 16;
+	private static final int HISTORY_PAGE = 20;
 
 	public Room[][] window;
 	private RoomDownloader downloader;
 	private int centerX;
 	private int centerY;
 	
+	//Rooms that were panned out of the window, kept so that only their
+	//changes need downloading when the window pans back. Even a get() reorders
+	//it, and the window pans on the animator thread while deltas arrive on the
+	//connection thread, so every use is guarded by recentLock
+	private LinkedHashMap<Long, Room> recent;
+	private final Object recentLock = new Object();
+	
+	//The last page of chat asked for, so scrolling does not ask twice
+	private Room pagedRoom;
+	private long pagedBefore;
+	
 	public RoomWindow(int xPos, int yPos, Socket serverSocket, Semaphore sem){
+		this(xPos, yPos, new RoomDownloader(serverSocket, sem));
+	}
+	
+	/**
+	 * Downloads the Rooms around a position with the given RoomDownloader.
+	 * @param xPos the x-coordinate of the position
+	 * @param yPos the y-coordinate of the position
+	 * @param down the downloader
+	 */
+	public RoomWindow(int xPos, int yPos, RoomDownloader down){
 		//3x3 allows for pre-loading all adjacent rooms
 		window = new Room[3][3];
+		recent = createRecent();
 		
 		centerX = xPos / width;
 		centerY = yPos / height;
 		
-		downloader= new RoomDownloader(serverSocket, sem);
+		downloader= down;
 		
 		//Download initial state
 		for(int x = 0; x < 3; x++){
@@ -48,6 +77,65 @@ public class RoomWindow {
 	public RoomWindow(RoomDownloader down, Room[][] w){
 		window = w;
 		downloader= down;
+		recent = createRecent();
+	}
+	
+	/**
+	 * createRecent() is a private helper that creates the cache of recent Rooms,
+	 * which forgets the least recently used Room once it is full.
+	 * 
+	 * @return the cache
+	 */
+	private static LinkedHashMap<Long, Room> createRecent(){
+		return new LinkedHashMap<Long, Room>(RECENT_ROOMS, 0.75f, true){
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<Long, Room> eldest){
+				return size() > RECENT_ROOMS;
+			}
+		};
+	}
+	
+	/**
+	 * key() is a private helper that makes the cache key for a Room.
+	 * 
+	 * @param gridX the x-coordinate of the Room
+	 * @param gridY the y-coordinate of the Room
+	 * @return the key
+	 */
+	private static Long key(int gridX, int gridY){
+		return Long.valueOf(((long) gridX << 32) | (gridY & 0xFFFFFFFFL));
+	}
+	
+	/**
+	 * remember() is a private helper that keeps a Room leaving the window.
+	 * 
+	 * @param room the Room, may be null
+	 */
+	private void remember(Room room){
+		if(room == null)
+			return;
+		
+		synchronized(recentLock){
+			recent.put(key(room.getGridX(), room.getGridY()), room);
+		}
+	}
+	
+	/**
+	 * fetch() is a private helper that downloads a Room entering the window.
+	 * A remembered copy is used right away and brought up to date by a delta.
+	 * 
+	 * @param gridX the x-coordinate of the Room
+	 * @param gridY the y-coordinate of the Room
+	 * @return the remembered copy, or null if there is none
+	 */
+	private Room fetch(int gridX, int gridY){
+		Room known;
+		synchronized(recentLock){
+			known = recent.remove(key(gridX, gridY));
+		}
+		downloader.getRoom(gridX, gridY, known);
+		return known;
 	}
 	
 	/**
@@ -68,6 +156,42 @@ public class RoomWindow {
 		window[windowY][windowX] = newRoom;
 	}
 	
+	/**
+	 * applyDelta() applies the changes to a Room that the server sent. If a Room
+	 * in the window has no copy the delta fits, the whole Room is downloaded
+	 * instead; a remembered Room it does not fit is forgotten, and a delta for a
+	 * Room that is neither is ignored.
+	 * 
+	 * @param gridX the x-coordinate of the Room
+	 * @param gridY the y-coordinate of the Room
+	 * @param delta the delta
+	 * @throws ProtocolException if the delta is malformed
+	 */
+	public void applyDelta(int gridX, int gridY, MessageReader delta) throws ProtocolException {
+		boolean inWindow = Math.abs(gridX - centerX) <= 1 && Math.abs(gridY - centerY) <= 1;
+		Room room;
+		if(inWindow){
+			room = window[1 + (gridY - centerY)][1 + (gridX - centerX)];
+		}
+		else{
+			synchronized(recentLock){
+				room = recent.get(key(gridX, gridY));
+			}
+		}
+		if(room != null && RoomCodec.applyDelta(delta, room))
+			return;
+		
+		if(inWindow){
+			downloader.getRoom(gridX, gridY);
+		}
+		else if(room != null){
+			//Downloaded whole if the window pans back to it
+			synchronized(recentLock){
+				recent.remove(key(gridX, gridY), room);
+			}
+		}
+	}
+	
 	/**
 	 * isInWindow() tells if the given coordinate is inside the window.
 	 * 
@@ -129,7 +253,9 @@ public class RoomWindow {
 		int windowX = 1 + (gridX - centerX);
 		int windowY = 1 + (gridY - centerY);
 		
-		window[windowY][windowX].updateTime(x, y, time);
+		//A Room still downloading gets the footstep with the rest of it
+		if(window[windowY][windowX] != null)
+			window[windowY][windowX].updateTime(x, y, time);
 	}
 	
 	/**
@@ -174,12 +300,50 @@ public class RoomWindow {
 	/**
 	 * getHistory() gets the history for the current room.
 	 * 
-	 * @return the history as an ArrayList of Strings
+	 * @return the history as a List of Strings
 	 */
-	public ArrayList<String> getHistory() {
+	public List<String> getHistory() {
 		return window[1][1].getHistory();
 	}
 	
+	/**
+	 * requestOlderHistory() asks for the page of chat lines before the oldest
+	 * line of the current room, unless it was already asked for or there are
+	 * none.
+	 */
+	public void requestOlderHistory() {
+		Room room = window[1][1];
+		if(room == null || room.getFirstLine() == 0)
+			return;
+		
+		if(room == pagedRoom && room.getFirstLine() == pagedBefore)
+			return;
+		
+		pagedRoom = room;
+		pagedBefore = room.getFirstLine();
+		downloader.requestHistory(centerX, centerY, pagedBefore, HISTORY_PAGE);
+	}
+	
+	/**
+	 * applyHistory() adds a page of older chat lines to a given room.
+	 * 
+	 * @param gridX the x-coordinate of the Room
+	 * @param gridY the y-coordinate of the Room
+	 * @param page the page
+	 * @throws ProtocolException if the page is malformed
+	 */
+	public void applyHistory(int gridX, int gridY, MessageReader page) throws ProtocolException {
+		if(Math.abs(gridX - centerX) > 1)
+			return;
+		
+		if(Math.abs(gridY - centerY) > 1)
+			return;
+		
+		Room room = window[1 + (gridY - centerY)][1 + (gridX - centerX)];
+		if(room != null)
+			RoomCodec.applyHistory(page, room);
+	}
+	
 	/**
 	 * inputMessage() inputs a message into a given room.
 	 * 
@@ -197,7 +361,8 @@ public class RoomWindow {
 		int windowX = 1 + (gridX - centerX);
 		int windowY = 1 + (gridY - centerY);
 		
-		window[windowY][windowX].addLine(line);
+		if(window[windowY][windowX] != null)
+			window[windowY][windowX].addLine(line);
 	}
 	
 	
@@ -212,11 +377,11 @@ public class RoomWindow {
 	 */
 	public void shiftRight(){
 		for(int y = 0; y < 3; y++){
+			remember(window[y][0]);
 			window[y][0] = window[y][1];
 			window[y][1] = window[y][2];
 			
-			window[y][2] = null;
-			downloader.getRoom(centerX + 2, centerY + y-1);
+			window[y][2] = fetch(centerX + 2, centerY + y-1);
 		}
 		
 		centerX++;
@@ -237,11 +402,11 @@ public class RoomWindow {
 	 */
 	public void shiftLeft(){
 		for(int y = 0; y < 3; y++){
+			remember(window[y][2]);
 			window[y][2] = window[y][1];
 			window[y][1] = window[y][0];
 			
-			window[y][0] = null;
-			downloader.getRoom(centerX - 2, centerY + y-1);
+			window[y][0] = fetch(centerX - 2, centerY + y-1);
 		}
 		centerX--;
 	} 
@@ -261,11 +426,11 @@ public class RoomWindow {
 	 */
 	public void shiftUp(){
 		for(int x = 0; x < 3; x++){
+			remember(window[2][x]);
 			window[2][x] = window[1][x];
 			window[1][x] = window[0][x];
 			
-			window[0][x] = null;
-			downloader.getRoom(centerX + x-1, centerY - 2);
+			window[0][x] = fetch(centerX + x-1, centerY - 2);
 		}
 		centerY--;
 	}
@@ -285,11 +450,11 @@ public class RoomWindow {
 	 */
 	public void shiftDown(){
 		for(int x = 0; x < 3; x++){
+			remember(window[0][x]);
 			window[0][x] = window[1][x];
 			window[1][x] = window[2][x];
 			
-			window[2][x] = null;
-			downloader.getRoom(centerX + x-1, centerY + 2);;
+			window[2][x] = fetch(centerX + x-1, centerY + 2);
 		}
 		centerY++;
 	}
@@ -102,5 +102,27 @@ public class RoomWindowTest {
 		assertEquals(1, rw.window[1][1].getGridX());
 		assertEquals(2, rw.window[1][1].getGridY());
 	}
+	
+	/**
+	 * Tests that footsteps and lines for Rooms still downloading are skipped
+	 * @throws Exception
+	 */
+	@Test
+	public void updateWhileLoading() throws Exception {
+		Socket socket = new Socket();
+		RoomDownloader downloader = new RoomDownloader(socket, null);
+		
+		Room[][] window = new Room[3][3];
+		window[1][1] = new Room(640, 480, 0, 0);
+		RoomWindow rw = new RoomWindow(downloader, window);
+		
+		rw.updateFootstep(1, 0, 3, 4, 1365000000000L);
+		rw.inputMessage(1, 0, "andy: hi");
+		rw.updateFootstep(0, 0, 3, 4, 1365000000000L);
+		rw.inputMessage(0, 0, "andy: hi");
+		
+		assertEquals(1365000000000L, rw.window[1][1].getTime(3, 4));
+		assertEquals(1, rw.getHistory().size());
+	}
 
 }
@@ -0,0 +1,164 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+
+import shared.MessageReader;
+import shared.Protocol;
+
+/**
+ * BlockingConnection is one client socket with a thread that reads it and a
+ * thread that writes it, both plain blocking code. The threads come from an
+ * Executor, so they can be virtual threads.
+ *
+ * Sending works as it does on any Connection: frames go on the outbound queue
+ * and the writer thread is woken to write them. The writer only waits on a
+ * Semaphore and the socket, never on a monitor, so a virtual writer does not
+ * pin its carrier thread.
+ *
+ * @author Andy Katz
+ *
+ */
+public class BlockingConnection extends Connection {
+	//Most frames the writer takes off the queue at once
+	static final int BATCH_SIZE = 64;
+
+	private final Socket socket;
+	private final Executor executor;
+	private final Semaphore wake;
+
+	public BlockingConnection(Socket s, Executor e, ServerConfig config){
+		super(config);
+		socket = s;
+		executor = e;
+		wake = new Semaphore(0);
+	}
+
+	/**
+	 * register() starts the reader and writer threads.
+	 */
+	@Override
+	public void register(){
+		executor.execute(new Runnable() {
+			public void run() {
+				readLoop();
+			}
+		});
+		executor.execute(new Runnable() {
+			public void run() {
+				writeLoop();
+			}
+		});
+	}
+
+	/**
+	 * readLoop() is a private helper that reads frames and hands them to the
+	 * handler until the socket closes.
+	 */
+	private void readLoop(){
+		try {
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			MessageReader reader = new MessageReader();
+			while(!isClosed()){
+				int opcode = reader.readFrame(in, Protocol.MAX_CLIENT_FRAME);
+				markRead();
+				getHandler().handleMessage(this, opcode, reader);
+			}
+		} catch (EOFException e) {
+			//The client hung up
+		} catch (IOException e) {
+			if(!isClosed())
+				System.err.println(e.getMessage());
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+		}
+		close();
+	}
+
+	/**
+	 * writeLoop() is a private helper that writes queued frames whenever it is
+	 * woken, until the Connection closes.
+	 */
+	private void writeLoop(){
+		ByteBuffer[] batch = new ByteBuffer[BATCH_SIZE];
+		byte[] copy = new byte[0];
+		OutboundQueue outbound = getOutbound();
+		try {
+			OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+			while(!isClosed()){
+				wake.acquire();
+				wake.drainPermits();
+				if(beginFlush()){
+					close();
+					return;
+				}
+
+				int count;
+				while((count = outbound.peek(batch)) > 0){
+					writeStarted();
+					for(int i = 0; i < count; i++){
+						ByteBuffer frame = batch[i];
+						int length = frame.remaining();
+						if(frame.hasArray()){
+							out.write(frame.array(), frame.arrayOffset() + frame.position(), length);
+						}
+						else{
+							if(copy.length < length)
+								copy = new byte[length];
+							frame.duplicate().get(copy, 0, length);
+							out.write(copy, 0, length);
+						}
+						frame.position(frame.limit());
+						batch[i] = null;
+					}
+					outbound.removeWritten();
+					writeFinished();
+				}
+				writeStarted();
+				out.flush();
+				writeFinished();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			if(!isClosed())
+				System.err.println(e.getMessage());
+		}
+		close();
+	}
+
+	/**
+	 * closeLater() closes the socket right away, since the writer may be stuck
+	 * in a write that only closing the socket ends. The reader and writer then
+	 * close the Connection.
+	 */
+	@Override
+	public void closeLater(){
+		super.closeLater();
+		try {
+			socket.close();
+		} catch (IOException e) {
+			System.err.println(e.getMessage());
+		}
+	}
+
+	@Override
+	void wakeWriter(){
+		wake.release();
+	}
+
+	@Override
+	void closeSocket() throws IOException{
+		socket.close();
+		//Let the writer see that it is closed
+		wake.release();
+	}
+}
@@ -0,0 +1,104 @@
+package server;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * BlockingEngine accepts client connections with a plain ServerSocket and
+ * gives each one a reader and a writer thread. It is the simple blocking
+ * alternative to the ConnectionEngine, chosen with -Dserver.mode=platform for
+ * a platform thread per task or -Dserver.mode=virtual for a virtual thread per
+ * task.
+ *
+ * @author Andy Katz
+ *
+ */
+public class BlockingEngine implements Runnable {
+
+	/**
+	 * AcceptHandler is told about every connection accepted.
+	 */
+	public interface AcceptHandler {
+		/**
+		 * accepted() handles a newly accepted connection.
+		 *
+		 * @param connection the connection, not yet registered
+		 */
+		public void accepted(BlockingConnection connection) throws IOException;
+	}
+
+	private final ExecutorService executor;
+	private final ServerConfig config;
+	private ServerSocket server;
+	private AcceptHandler handler;
+
+	public BlockingEngine(ServerConfig config){
+		this.config = config;
+		if(ServerConfig.MODE_VIRTUAL.equals(config.mode))
+			executor = newVirtualExecutor();
+		else
+			executor = Executors.newCachedThreadPool();
+	}
+
+	/**
+	 * newVirtualExecutor() is a private helper that creates an executor that
+	 * starts a virtual thread for every task. Virtual threads are looked up by
+	 * reflection so that the server still builds and runs on older JDKs, which
+	 * get platform threads instead.
+	 *
+	 * @return the executor
+	 */
+	private static ExecutorService newVirtualExecutor(){
+		try {
+			Method create = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) create.invoke(null);
+		} catch (Exception e) {
+			System.err.println("Virtual threads are not available, using platform threads");
+			return Executors.newCachedThreadPool();
+		}
+	}
+
+	/**
+	 * listen() starts accepting connections on the given port.
+	 * Must be called before run().
+	 *
+	 * @param port the port to listen on
+	 * @param h the handler for accepted connections
+	 */
+	public void listen(int port, AcceptHandler h) throws IOException{
+		server = new ServerSocket();
+		server.setReuseAddress(true);
+		server.bind(new InetSocketAddress(port), 1024);
+		handler = h;
+	}
+
+	/**
+	 * run() is the accept loop. It runs on the thread that starts the server.
+	 */
+	@Override
+	public void run() {
+		while(true){
+			Socket client = null;
+			try {
+				client = server.accept();
+				client.setTcpNoDelay(true);
+				handler.accepted(new BlockingConnection(client, executor, config));
+			} catch (IOException e) {
+				System.err.println(e.getMessage());
+				e.printStackTrace();
+				if(client != null){
+					try {
+						client.close();
+					} catch (IOException e1) {}
+				}
+				if(server.isClosed())
+					return;
+			}
+		}
+	}
+}
@@ -0,0 +1,720 @@
+package server;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import shared.Room;
+
+/**
+ * ChatLog keeps every chat line sent on the server in an append-only log, so
+ * that chat outlives restarts and scrollback can go further back than the
+ * lines a Room keeps.
+ *
+ * The log is a series of segment files. A record is the length and CRC32 of
+ * its payload, then the payload: the grid coordinates of the room, the number
+ * of the line in the room, the time it was sent and its UTF-8 bytes. A
+ * segment is closed once it grows past a size and a new one is started. Once
+ * the segments add up to more than a number of bytes, the oldest are deleted
+ * and the lines in them are forgotten by the index.
+ *
+ * Lines are handed to the log from the thread that read them and queued; a
+ * thread of its own writes whatever has queued up in one write and forces it
+ * to disk once, so a line never waits for the disk before it is sent on. If
+ * the queue fills up, lines are dropped from the log and counted.
+ *
+ * An index of where each line of each room is kept in memory. It is rebuilt
+ * by reading the segments when the server starts, stopping at the first
+ * record that is cut short or does not match its CRC32; the rest of the last
+ * segment is cut off. Lines are read back through mappings of the segments,
+ * outside the lock: where the lines are is looked up under it, and the
+ * mappings are only ever replaced, never changed.
+ *
+ * @author Andy Katz
+ *
+ */
+public class ChatLog implements Runnable {
+	private static final int RECORD_HEADER = 8;
+	private static final int PAYLOAD_HEADER = 24;
+	private static final int QUEUE_LIMIT = 64 * 1024;
+	private static final int BATCH = 1024;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final File directory;
+	private final long segmentBytes;
+	private final long retainBytes;
+	private final LinkedBlockingQueue<Entry> queue;
+
+	//Guarded by this
+	private final ArrayList<Segment> segments;
+	private final HashMap<Long, Index> index;
+
+	//Only used by the writing thread once it is started
+	private FileChannel out;
+
+	private Thread writer;
+	private volatile boolean closed;
+
+	/**
+	 * @param dir the directory of the segments
+	 * @param maxSegment the bytes a segment grows to before the next is started
+	 * @param retain the bytes of segments kept before the oldest are deleted
+	 */
+	public ChatLog(File dir, long maxSegment, long retain){
+		directory = dir;
+		segmentBytes = Math.min(maxSegment, Integer.MAX_VALUE);
+		retainBytes = retain;
+		queue = new LinkedBlockingQueue<Entry>(QUEUE_LIMIT);
+		segments = new ArrayList<Segment>();
+		index = new HashMap<Long, Index>();
+		out = null;
+		writer = null;
+		closed = false;
+	}
+
+	/**
+	 * open() reads the segments in the directory and indexes their lines. The
+	 * oldest segments past the bytes kept are deleted without being read.
+	 *
+	 * @return the number of lines in the log
+	 * @throws IOException if the log cannot be read
+	 */
+	public synchronized int open() throws IOException{
+		long start = System.currentTimeMillis();
+		directory.mkdirs();
+		String[] names = directory.list(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.startsWith("chat-") && name.endsWith(".log");
+			}
+		});
+		Arrays.sort(names);
+
+		for(int i = 0; i < names.length; i++){
+			Segment segment = new Segment(new File(directory, names[i]));
+			segment.size = segment.file.length();
+			segments.add(segment);
+		}
+		delete(expire());
+
+		int lines = 0;
+		for(int i = 0; i < segments.size(); i++){
+			lines += scan(segments.get(i), i == segments.size() - 1);
+		}
+
+		if(segments.isEmpty())
+			roll();
+		Segment last = segments.get(segments.size() - 1);
+		out = new RandomAccessFile(last.file, "rw").getChannel();
+		out.position(last.size);
+
+		System.out.println("Indexed " + lines + " chat lines in " + segments.size()
+				+ " segments in " + (System.currentTimeMillis() - start) + "ms");
+		return lines;
+	}
+
+	/**
+	 * recover() adds the newest logged lines of a room that the Room does not
+	 * have already, for lines sent after the world was last saved. A RoomSlot
+	 * calls it as it makes the Room, so a room is only read from the log when
+	 * it is first touched, and one that has every line costs one lookup.
+	 *
+	 * @param room the Room, not yet used by anything else
+	 * @param lines the most lines to add
+	 * @return the number of lines added
+	 */
+	public int recover(Room room, int lines){
+		long end = room.getFirstLine() + room.getHistory().size();
+		Index ix;
+		long last;
+		synchronized(this){
+			ix = index.get(key(room.getGridX(), room.getGridY()));
+			if(ix == null)
+				return 0;
+			last = ix.first + ix.count - 1;
+		}
+
+		int added = 0;
+		for(long n = Math.max(end, last + 1 - lines); n <= last; n++){
+			Segment segment;
+			long location;
+			synchronized(this){
+				location = ix.get(n);
+				segment = location < 0 ? null : segment(location);
+			}
+			String line = segment == null ? null : read(segment, (int) location);
+			if(line == null)
+				continue;
+
+			//A line missing from the log would shift the numbers of the rest
+			if(end != n)
+				room.truncateHistory(n);
+			room.addLine(line);
+			end = n + 1;
+			added++;
+		}
+		return added;
+	}
+
+	/**
+	 * start() starts writing queued lines on a thread of its own, and writes
+	 * those still queued when the server stops.
+	 */
+	public void start(){
+		writer = new Thread(this, "chat log");
+		writer.setDaemon(true);
+		writer.start();
+		Runtime.getRuntime().addShutdownHook(new Thread("chat log close") {
+			public void run() {
+				close();
+			}
+		});
+	}
+
+	/**
+	 * close() writes the lines still queued and stops writing.
+	 */
+	public void close(){
+		closed = true;
+		try {
+			if(writer != null)
+				writer.join(5000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * append() queues a line to be logged.
+	 *
+	 * @param gridX the x coordinate of the room
+	 * @param gridY the y coordinate of the room
+	 * @param number the number of the line in the room
+	 * @param line the line
+	 */
+	public void append(int gridX, int gridY, long number, String line){
+		Entry entry = new Entry(gridX, gridY, number, System.currentTimeMillis(), line.getBytes(UTF8));
+		if(closed || !queue.offer(entry))
+			ServerStats.droppedLines.incrementAndGet();
+	}
+
+	/**
+	 * read() reads the lines of a room logged just before the given line, as
+	 * far back as the log has them without a gap.
+	 *
+	 * @param gridX the x coordinate of the room
+	 * @param gridY the y coordinate of the room
+	 * @param before the number of the line after the lines
+	 * @param count the most lines to read
+	 * @return the lines, oldest first
+	 */
+	public List<String> read(int gridX, int gridY, long before, int count){
+		LinkedList<String> lines = new LinkedList<String>();
+		Segment[] found = new Segment[Math.max(0, count)];
+		int[] positions = new int[found.length];
+		int size = 0;
+		synchronized(this){
+			Index ix = index.get(key(gridX, gridY));
+			if(ix == null)
+				return lines;
+
+			while(size < found.length){
+				long location = ix.get(before - 1 - size);
+				Segment segment = location < 0 ? null : segment(location);
+				if(segment == null)
+					break;
+				found[size] = segment;
+				positions[size] = (int) location;
+				size++;
+			}
+		}
+
+		for(int i = 0; i < size; i++){
+			String line = read(found[i], positions[i]);
+			if(line == null)
+				break;
+			lines.addFirst(line);
+		}
+		return lines;
+	}
+
+	/**
+	 * run() writes queued lines until the log is closed and nothing is queued.
+	 */
+	@Override
+	public void run() {
+		List<Entry> batch = new ArrayList<Entry>(BATCH);
+		while(true){
+			Entry first;
+			try {
+				first = queue.poll(100, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				first = null;
+			}
+			if(first == null){
+				if(closed)
+					break;
+				continue;
+			}
+
+			batch.add(first);
+			queue.drainTo(batch, BATCH - 1);
+			try {
+				write(batch);
+			} catch (IOException e) {
+				ServerStats.droppedLines.addAndGet(batch.size());
+				System.err.println("Chat log write failed: " + e.getMessage());
+			}
+			batch.clear();
+		}
+
+		try {
+			out.close();
+		} catch (IOException e) {
+			System.err.println("Chat log close failed: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * write() is a private helper that appends a batch of lines to the log,
+	 * forces them to disk and indexes them.
+	 *
+	 * @param batch the lines
+	 * @throws IOException if they cannot be written
+	 */
+	private void write(List<Entry> batch) throws IOException{
+		Segment segment;
+		synchronized(this){
+			segment = segments.get(segments.size() - 1);
+		}
+
+		int from = 0;
+		while(from < batch.size()){
+			//As many lines as fit in the segment, and at least one
+			long size = out.position();
+			int to = from;
+			int bytes = 0;
+			while(to < batch.size() && (to == from || size + bytes + batch.get(to).size() <= segmentBytes)){
+				bytes += batch.get(to).size();
+				to++;
+			}
+			if(size > 0 && size + bytes > segmentBytes){
+				out.force(false);
+				out.close();
+				List<Segment> expired;
+				synchronized(this){
+					segment = roll();
+					expired = expire();
+				}
+				out = new RandomAccessFile(segment.file, "rw").getChannel();
+				delete(expired);
+				continue;
+			}
+
+			ByteBuffer buffer = ByteBuffer.allocate(bytes);
+			for(int i = from; i < to; i++){
+				batch.get(i).writeTo(buffer);
+			}
+			buffer.flip();
+			while(buffer.hasRemaining())
+				out.write(buffer);
+			out.force(false);
+
+			synchronized(this){
+				long position = size;
+				for(int i = from; i < to; i++){
+					Entry entry = batch.get(i);
+					index(entry.gridX, entry.gridY, entry.number, segment.id, position);
+					position += entry.size();
+				}
+				segment.size = position;
+			}
+			ServerStats.loggedLines.addAndGet(to - from);
+			ServerStats.logCommits.incrementAndGet();
+			from = to;
+		}
+	}
+
+	/**
+	 * scan() is a private helper that indexes the records of a segment up to the
+	 * first bad one, cutting the segment off there if it is the last.
+	 *
+	 * @param segment the segment
+	 * @param last true if it is the last segment
+	 * @return the number of lines indexed
+	 * @throws IOException if the segment cannot be read
+	 */
+	private int scan(Segment segment, boolean last) throws IOException{
+		long length = segment.file.length();
+		segment.size = length;
+		ByteBuffer map = segment.map();
+
+		int lines = 0;
+		long position = 0;
+		CRC32 crc = new CRC32();
+		byte[] payload = new byte[256];
+		while(position + RECORD_HEADER <= length){
+			int size = map.getInt((int) position);
+			int check = map.getInt((int) position + 4);
+			if(size < PAYLOAD_HEADER || position + RECORD_HEADER + size > length)
+				break;
+
+			if(payload.length < size)
+				payload = new byte[size];
+			ByteBuffer record = map.duplicate();
+			record.position((int) position + RECORD_HEADER);
+			record.get(payload, 0, size);
+			crc.reset();
+			crc.update(payload, 0, size);
+			if((int) crc.getValue() != check)
+				break;
+
+			ByteBuffer fields = ByteBuffer.wrap(payload);
+			index(fields.getInt(0), fields.getInt(4), fields.getLong(8), segment.id, position);
+			position += RECORD_HEADER + size;
+			lines++;
+		}
+
+		if(position < length){
+			System.out.println("Chat log " + segment.file + " is bad after " + position + " bytes");
+			if(last){
+				RandomAccessFile file = new RandomAccessFile(segment.file, "rw");
+				try {
+					file.setLength(position);
+				} finally {
+					file.close();
+				}
+				segment.map = null;
+			}
+		}
+		segment.size = position;
+		return lines;
+	}
+
+	/**
+	 * roll() is a private helper that starts a new segment. Called with the lock held.
+	 *
+	 * @return the segment
+	 * @throws IOException if it cannot be made
+	 */
+	private Segment roll() throws IOException{
+		int id = 1;
+		if(!segments.isEmpty())
+			id = segments.get(segments.size() - 1).id + 1;
+
+		Segment segment = new Segment(new File(directory, "chat-" + String.format("%08d", id) + ".log"));
+		segment.file.createNewFile();
+		segment.size = 0;
+		segments.add(segment);
+		return segment;
+	}
+
+	/**
+	 * expire() is a private helper that drops the oldest segments while the
+	 * others add up to more than the bytes kept, and forgets the lines in them.
+	 * Called with the lock held.
+	 *
+	 * @return the segments dropped, to be deleted once the lock is let go
+	 */
+	private List<Segment> expire(){
+		List<Segment> expired = new ArrayList<Segment>();
+		long total = 0;
+		for(Segment segment : segments){
+			total += segment.size;
+		}
+		while(segments.size() > 1 && total > retainBytes){
+			Segment oldest = segments.remove(0);
+			total -= oldest.size;
+			expired.add(oldest);
+		}
+		if(expired.isEmpty())
+			return expired;
+
+		long kept = (long) segments.get(0).id << 32;
+		Iterator<Index> rooms = index.values().iterator();
+		while(rooms.hasNext()){
+			if(rooms.next().trim(kept) == 0)
+				rooms.remove();
+		}
+		return expired;
+	}
+
+	/**
+	 * delete() is a private helper that deletes the files of dropped segments.
+	 *
+	 * @param expired the segments
+	 */
+	private static void delete(List<Segment> expired){
+		for(Segment segment : expired){
+			if(!segment.file.delete())
+				System.err.println("Could not delete chat log " + segment.file);
+		}
+	}
+
+	/**
+	 * segment() is a private helper that finds the segment a line is in. Called
+	 * with the lock held.
+	 *
+	 * @param location the segment and position of the line
+	 * @return the segment, or null if it was deleted
+	 */
+	private Segment segment(long location){
+		int id = (int) (location >>> 32);
+		int low = 0;
+		int high = segments.size() - 1;
+		while(low <= high){
+			int mid = (low + high) >>> 1;
+			Segment segment = segments.get(mid);
+			if(segment.id < id)
+				low = mid + 1;
+			else if(segment.id > id)
+				high = mid - 1;
+			else
+				return segment;
+		}
+		return null;
+	}
+
+	/**
+	 * index() is a private helper that records where a line is. Called with the
+	 * lock held.
+	 *
+	 * @param gridX the x coordinate of the room
+	 * @param gridY the y coordinate of the room
+	 * @param number the number of the line
+	 * @param segmentId the id of the segment it is in
+	 * @param position where its record starts in the segment
+	 */
+	private void index(int gridX, int gridY, long number, int segmentId, long position){
+		Long key = key(gridX, gridY);
+		Index ix = index.get(key);
+		if(ix == null){
+			ix = new Index(number);
+			index.put(key, ix);
+		}
+		ix.put(number, ((long) segmentId << 32) | position);
+	}
+
+	/**
+	 * read() is a private helper that reads a line through the mapping of its
+	 * segment. Needs no lock.
+	 *
+	 * @param segment the segment the line is in
+	 * @param position where its record starts in the segment
+	 * @return the line, or null if it cannot be read
+	 */
+	private static String read(Segment segment, int position){
+		try {
+			ByteBuffer map = segment.map();
+			int size = map.getInt(position);
+			byte[] bytes = new byte[size - PAYLOAD_HEADER];
+			ByteBuffer record = map.duplicate();
+			record.position(position + RECORD_HEADER + PAYLOAD_HEADER);
+			record.get(bytes);
+			return new String(bytes, UTF8);
+		} catch (IOException e) {
+			System.err.println("Chat log read failed: " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * key() is a private helper that makes the index key of a room.
+	 *
+	 * @param gridX the x coordinate of the room
+	 * @param gridY the y coordinate of the room
+	 * @return the key
+	 */
+	private static Long key(int gridX, int gridY){
+		return Long.valueOf(((long) gridX << 32) | (gridY & 0xFFFFFFFFL));
+	}
+
+	/**
+	 * Entry is a line waiting to be written.
+	 */
+	private static class Entry {
+		final int gridX;
+		final int gridY;
+		final long number;
+		final long time;
+		final byte[] bytes;
+
+		Entry(int gridX, int gridY, long number, long time, byte[] bytes){
+			this.gridX = gridX;
+			this.gridY = gridY;
+			this.number = number;
+			this.time = time;
+			this.bytes = bytes;
+		}
+
+		/**
+		 * size() gets the size of the record of the line.
+		 *
+		 * @return the size in bytes
+		 */
+		int size(){
+			return RECORD_HEADER + PAYLOAD_HEADER + bytes.length;
+		}
+
+		/**
+		 * writeTo() writes the record of the line.
+		 *
+		 * @param buffer the buffer to write to
+		 */
+		void writeTo(ByteBuffer buffer){
+			byte[] payload = new byte[PAYLOAD_HEADER + bytes.length];
+			ByteBuffer.wrap(payload)
+				.putInt(gridX)
+				.putInt(gridY)
+				.putLong(number)
+				.putLong(time)
+				.put(bytes);
+			CRC32 crc = new CRC32();
+			crc.update(payload, 0, payload.length);
+			buffer.putInt(payload.length)
+				.putInt((int) crc.getValue())
+				.put(payload);
+		}
+	}
+
+	/**
+	 * Segment is one file of the log.
+	 */
+	private static class Segment {
+		final File file;
+		//The number in its name, which only ever goes up
+		final int id;
+		//Bytes of whole records, only changed with the ChatLog locked
+		volatile long size;
+		//Replaced, never changed, so it may be read without the lock
+		private volatile MappedByteBuffer map;
+
+		Segment(File file){
+			this.file = file;
+			String name = file.getName();
+			id = Integer.parseInt(name.substring(5, name.length() - 4));
+			size = 0;
+			map = null;
+		}
+
+		/**
+		 * map() maps the whole records of the segment, mapping it again if it
+		 * has grown since. Two threads may both map it; either mapping will do.
+		 *
+		 * @return the mapping
+		 * @throws IOException if the segment cannot be mapped
+		 */
+		ByteBuffer map() throws IOException{
+			MappedByteBuffer current = map;
+			long length = size;
+			if(current == null || current.capacity() < length){
+				RandomAccessFile f = new RandomAccessFile(file, "r");
+				try {
+					current = f.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+				} finally {
+					f.close();
+				}
+				map = current;
+			}
+			return current;
+		}
+	}
+
+	/**
+	 * Index holds where each line of a room is, by its number. A location is
+	 * the id of the segment in the high 32 bits and the position in the low.
+	 */
+	private static class Index {
+		long first;
+		long[] locations;
+		int count;
+
+		Index(long number){
+			first = number;
+			locations = new long[16];
+			Arrays.fill(locations, -1);
+			count = 0;
+		}
+
+		/**
+		 * put() records where a line is.
+		 *
+		 * @param number the number of the line
+		 * @param location its segment and position
+		 */
+		void put(long number, long location){
+			if(number < first){
+				//Rare: an older line logged after a newer one
+				int shift = (int) (first - number);
+				long[] moved = new long[Math.max(locations.length, count + shift)];
+				Arrays.fill(moved, -1);
+				System.arraycopy(locations, 0, moved, shift, count);
+				locations = moved;
+				first = number;
+				count += shift;
+			}
+
+			int at = (int) (number - first);
+			if(at >= locations.length){
+				long[] bigger = new long[Math.max(locations.length * 2, at + 1)];
+				Arrays.fill(bigger, -1);
+				System.arraycopy(locations, 0, bigger, 0, count);
+				locations = bigger;
+			}
+			locations[at] = location;
+			count = Math.max(count, at + 1);
+		}
+
+		/**
+		 * trim() forgets the lines in segments older than a location.
+		 *
+		 * @param kept the location of the start of the oldest segment kept
+		 * @return the number of lines left, counting gaps between them
+		 */
+		int trim(long kept){
+			int dropped = 0;
+			while(dropped < count && locations[dropped] < kept)
+				dropped++;
+			//Rare: an older line logged after a newer one
+			for(int i = dropped; i < count; i++){
+				if(locations[i] < kept)
+					locations[i] = -1;
+			}
+			if(dropped == 0)
+				return count;
+
+			long[] fewer = new long[Math.max(16, count - dropped)];
+			Arrays.fill(fewer, -1);
+			System.arraycopy(locations, dropped, fewer, 0, count - dropped);
+			locations = fewer;
+			first += dropped;
+			count -= dropped;
+			return count;
+		}
+
+		/**
+		 * get() finds where a line is.
+		 *
+		 * @param number the number of the line
+		 * @return its segment and position, or -1 if it is not in the log
+		 */
+		long get(long number){
+			if(number < first || number >= first + count)
+				return -1;
+			return locations[(int) (number - first)];
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package server;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import shared.Room;
+
+
+public class ChatLogTest {
+
+	/**
+	 * Tests that logged lines are read back after the log is opened again, in
+	 * pages and into the rooms of a new world as they are made, and that a torn
+	 * record at the end is cut off.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void Reopen() throws Exception{
+		File dir = new File(System.getProperty("java.io.tmpdir"), "chatlog" + System.nanoTime());
+		ChatLog log = new ChatLog(dir, 256, 1024 * 1024);
+		assertEquals(0, log.open());
+		log.start();
+		for(int i = 0; i < 30; i++){
+			log.append(2, 3, i, "line " + i);
+		}
+		log.append(4, 4, 0, "elsewhere");
+		log.close();
+		assertTrue(dir.list().length > 2);
+
+		log = new ChatLog(dir, 256, 1024 * 1024);
+		assertEquals(31, log.open());
+		assertEquals(Arrays.asList("line 17", "line 18", "line 19"), log.read(2, 3, 20, 3));
+		assertEquals(Arrays.asList("line 0", "line 1"), log.read(2, 3, 2, 10));
+		assertEquals(0, log.read(2, 3, 40, 10).size());
+
+		//Rooms are only read from the log as they are made
+		ServerModel model = new ServerModel(10, 10, 1024);
+		model.setChatLog(log);
+		assertEquals(0, model.getRoomCount());
+		Room room = model.getRoom(2, 3);
+		assertEquals(1, model.getRoomCount());
+		assertEquals(20, room.getFirstLine());
+		assertEquals("line 29", room.getHistory().get(9));
+		assertEquals("elsewhere", model.getRoom(4, 4).getHistory().get(0));
+
+		File[] segments = dir.listFiles();
+		Arrays.sort(segments);
+		File last = segments[segments.length - 1];
+		RandomAccessFile torn = new RandomAccessFile(last, "rw");
+		long length = torn.length();
+		torn.seek(length - 1);
+		torn.write(0x7F);
+		torn.close();
+
+		log = new ChatLog(dir, 256, 1024 * 1024);
+		assertEquals(30, log.open());
+		assertTrue(last.length() < length);
+
+		for(File segment : dir.listFiles())
+			segment.delete();
+		dir.delete();
+	}
+
+	/**
+	 * Tests that the oldest segments are deleted once the log grows past the
+	 * bytes it keeps, and that their lines are no longer read, before and
+	 * after the log is opened again.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void Retain() throws Exception{
+		File dir = new File(System.getProperty("java.io.tmpdir"), "chatlog" + System.nanoTime());
+		ChatLog log = new ChatLog(dir, 256, 1024);
+		log.open();
+		log.start();
+		for(int i = 0; i < 100; i++){
+			log.append(2, 3, i, "line " + i);
+		}
+		log.close();
+
+		long bytes = 0;
+		for(File segment : dir.listFiles())
+			bytes += segment.length();
+		assertTrue(bytes <= 1024 + 256);
+		assertEquals(0, log.read(2, 3, 10, 10).size());
+		List<String> newest = log.read(2, 3, 100, 100);
+		assertTrue(newest.size() > 0 && newest.size() < 100);
+		assertEquals("line 99", newest.get(newest.size() - 1));
+
+		log = new ChatLog(dir, 256, 512);
+		int lines = log.open();
+		assertTrue(lines < newest.size());
+		assertEquals(lines, log.read(2, 3, 100, 100).size());
+		assertEquals(0, log.read(2, 3, 10, 10).size());
+
+		for(File segment : dir.listFiles())
+			segment.delete();
+		dir.delete();
+	}
+
+}
@@ -0,0 +1,368 @@
+package server;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import shared.MessageReader;
+import shared.Protocol;
+
+/**
+ * Connection is one non-blocking client socket owned by an IOWorker.
+ * Any thread may send() on a Connection; the frames are put on its
+ * OutboundQueue and written in batches by the owning IOWorker when the
+ * socket can take them, so sending never waits on the client.
+ *
+ * BlockingConnection reuses the queueing and closing of a Connection for
+ * sockets that are read and written by threads of their own.
+ *
+ * A client that falls behind is handled in steps: once its queue passes the
+ * high watermark footsteps are dropped for it, and once the queue is full or
+ * nothing could be written to it for the write timeout it is disconnected.
+ *
+ * @author Andy Katz
+ *
+ */
+public class Connection {
+	static final int READ_BUFFER_SIZE = 8192;
+	//Most batches a flush writes before letting other connections have a turn
+	static final int MAX_BATCHES = 16;
+
+	private final SocketChannel channel;
+	private final IOWorker worker;
+	private SelectionKey key;
+	private ConnectionHandler handler;
+
+	private final ByteBuffer readBuffer;
+	private final MessageReader reader;
+	private final OutboundQueue outbound;
+	private final int outboundHigh;
+	private final int writeTimeout;
+	private final AtomicBoolean flushScheduled;
+	private final AtomicBoolean closed;
+	private volatile boolean closeRequested;
+	//When the client last stopped taking bytes while some waited, 0 if it has not
+	private volatile long stalledSince;
+	//When something was last read from the client
+	private volatile long lastRead;
+
+	public Connection(SocketChannel socketChannel, IOWorker ioWorker, ServerConfig config){
+		channel = socketChannel;
+		worker = ioWorker;
+		readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		reader = new MessageReader();
+		outbound = new OutboundQueue(config.outboundLimit);
+		outboundHigh = config.outboundHigh;
+		writeTimeout = config.writeTimeout;
+		flushScheduled = new AtomicBoolean(false);
+		closed = new AtomicBoolean(false);
+		stalledSince = 0;
+		lastRead = System.currentTimeMillis();
+	}
+
+	/**
+	 * Used by BlockingConnection, which has no channel or IOWorker.
+	 *
+	 * @param config the settings of the server
+	 */
+	Connection(ServerConfig config){
+		this(null, null, config);
+	}
+
+	/**
+	 * setHandler() sets the handler that receives the messages of this Connection.
+	 * It must be called before register().
+	 *
+	 * @param h the handler
+	 */
+	public void setHandler(ConnectionHandler h){
+		handler = h;
+	}
+
+	/**
+	 * register() hands the Connection to its IOWorker so that it starts reading.
+	 */
+	public void register(){
+		worker.register(this);
+	}
+
+	/**
+	 * send() queues a frame to be written to the client. The buffer must not be
+	 * modified after it is handed over; to send one frame to many clients, hand
+	 * each a duplicate() of it.
+	 * 
+	 * A client that lets its queue fill up is not keeping up and is disconnected.
+	 *
+	 * @param buffer the bytes to send
+	 */
+	public void send(ByteBuffer buffer){
+		send(buffer, false);
+	}
+
+	/**
+	 * send() queues a frame to be written to the client. A droppable frame, such
+	 * as a batch of footsteps that the next batch makes stale anyway, is not
+	 * queued for a client that is already behind.
+	 *
+	 * @param buffer the bytes to send
+	 * @param droppable true if the frame may be dropped for a slow client
+	 */
+	public void send(ByteBuffer buffer, boolean droppable){
+		if(closed.get() || closeRequested)
+			return;
+
+		long stalled = stalledSince;
+		if(stalled != 0 && System.currentTimeMillis() - stalled > writeTimeout){
+			System.err.println("Client stopped reading, closing connection");
+			ServerStats.stalledEvictions.incrementAndGet();
+			closeLater();
+			return;
+		}
+
+		if(droppable && outbound.size() > outboundHigh){
+			ServerStats.droppedFootsteps.incrementAndGet();
+			return;
+		}
+
+		if(!outbound.offer(buffer)){
+			System.err.println("Outbound queue full, closing connection");
+			ServerStats.overflowEvictions.incrementAndGet();
+			closeLater();
+			return;
+		}
+		if(flushScheduled.compareAndSet(false, true)){
+			wakeWriter();
+		}
+	}
+
+	/**
+	 * getOutbound() gets the queue of frames waiting to be written.
+	 *
+	 * @return the queue
+	 */
+	public OutboundQueue getOutbound(){
+		return outbound;
+	}
+
+	/**
+	 * close() closes the Connection and notifies the handler once.
+	 */
+	public void close(){
+		if(!closed.compareAndSet(false, true))
+			return;
+
+		if(key != null)
+			key.cancel();
+		try {
+			closeSocket();
+		} catch (IOException e) {
+			System.err.println(e.getMessage());
+		}
+		outbound.clear();
+
+		if(handler != null)
+			handler.disconnected(this);
+	}
+
+	/**
+	 * closeLater() has the owning IOWorker close the Connection. Used by other
+	 * threads, which may be in the middle of a fan-out over the players.
+	 */
+	public void closeLater(){
+		closeRequested = true;
+		if(flushScheduled.compareAndSet(false, true)){
+			wakeWriter();
+		}
+	}
+
+	/**
+	 * isClosed() tells if the Connection has been closed.
+	 *
+	 * @return true if it is closed
+	 */
+	public boolean isClosed(){
+		return closed.get();
+	}
+
+	/**
+	 * getLastRead() gets when something was last read from the client.
+	 *
+	 * @return the time in milliseconds
+	 */
+	public long getLastRead(){
+		return lastRead;
+	}
+
+	/**
+	 * markRead() notes that something was just read from the client.
+	 */
+	void markRead(){
+		lastRead = System.currentTimeMillis();
+	}
+
+	/**
+	 * getHandler() gets the handler that receives the messages of this Connection.
+	 *
+	 * @return the handler
+	 */
+	ConnectionHandler getHandler(){
+		return handler;
+	}
+
+	/**
+	 * wakeWriter() has whatever writes this Connection flush it.
+	 */
+	void wakeWriter(){
+		worker.scheduleFlush(this);
+	}
+
+	/**
+	 * beginFlush() clears the request to flush, so that sends from now on ask
+	 * for another one.
+	 *
+	 * @return true if the Connection should be closed instead of flushed
+	 */
+	boolean beginFlush(){
+		flushScheduled.set(false);
+		return closeRequested;
+	}
+
+	/**
+	 * writeStarted() notes that there are bytes waiting to be written, for the
+	 * write timeout. Only called by whatever writes this Connection.
+	 */
+	void writeStarted(){
+		if(stalledSince == 0)
+			stalledSince = System.currentTimeMillis();
+	}
+
+	/**
+	 * writeFinished() notes that the client took bytes, so it is not stalled.
+	 * Only called by whatever writes this Connection.
+	 */
+	void writeFinished(){
+		stalledSince = 0;
+	}
+
+	/**
+	 * closeSocket() closes the socket under the Connection.
+	 */
+	void closeSocket() throws IOException{
+		channel.close();
+	}
+
+
+
+
+	//---------------------------------
+	//IOWorker functions
+	//---------------------------------
+
+	/**
+	 * attach() registers the channel with the worker's selector.
+	 * Only called from the IOWorker thread.
+	 */
+	void attach() throws IOException{
+		channel.configureBlocking(false);
+		try{
+			key = channel.register(worker.getSelector(), SelectionKey.OP_READ, this);
+		} catch (ClosedChannelException e){
+			close();
+			return;
+		}
+
+		//Anything sent before the channel was registered still needs writing
+		if(!outbound.isEmpty()){
+			flush();
+		}
+	}
+
+	/**
+	 * read() reads what is available and hands every complete frame to the handler.
+	 * Only called from the IOWorker thread.
+	 */
+	void read() throws IOException{
+		int count = channel.read(readBuffer);
+		if(count < 0){
+			close();
+			return;
+		}
+		markRead();
+
+		byte[] bytes = readBuffer.array();
+		int end = readBuffer.position();
+		int start = 0;
+		while(start < end && !closed.get()){
+			//Read the varint length in front of the frame
+			int length = 0;
+			int shift = 0;
+			int i = start;
+			boolean complete = false;
+			while(i < end && !complete){
+				int b = bytes[i++];
+				length |= (b & 0x7F) << shift;
+				complete = (b & 0x80) == 0;
+				shift += 7;
+				if(!complete && shift > 14)
+					throw new ProtocolException("Malformed frame length");
+			}
+			if(!complete)
+				break;
+
+			if(length <= 0 || length > Protocol.MAX_CLIENT_FRAME)
+				throw new ProtocolException("Bad frame length " + length);
+			if(end - i < length)
+				break;
+
+			reader.reset(bytes, i, length);
+			handler.handleMessage(this, reader.readByte(), reader);
+			start = i + length;
+		}
+
+		readBuffer.flip();
+		readBuffer.position(start);
+		readBuffer.compact();
+	}
+
+	/**
+	 * flush() writes as much of the queued output as the socket will take.
+	 * Queued frames are written a batch at a time with one gathering write.
+	 * Only called from the IOWorker thread.
+	 */
+	void flush() throws IOException{
+		if(beginFlush()){
+			close();
+			return;
+		}
+		if(key == null || !key.isValid())
+			return;
+
+		ByteBuffer[] batch = worker.getBatch();
+		for(int i = 0; i < MAX_BATCHES; i++){
+			int count = outbound.peek(batch);
+			if(count == 0){
+				writeFinished();
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+				return;
+			}
+
+			if(channel.write(batch, 0, count) > 0)
+				writeFinished();
+			writeStarted();
+			boolean partial = batch[count-1].hasRemaining();
+			outbound.removeWritten();
+			Arrays.fill(batch, 0, count, null);
+
+			if(partial)
+				break;
+		}
+
+		//The socket is full or others are waiting; finish when it is writable
+		key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+	}
+}
@@ -0,0 +1,121 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+
+/**
+ * ConnectionEngine accepts client connections with a Selector and spreads
+ * them over a small, fixed pool of IOWorkers. One engine can hold many
+ * thousands of mostly idle connections without a thread for each.
+ *
+ * @author Andy Katz
+ *
+ */
+public class ConnectionEngine implements Runnable {
+
+	/**
+	 * AcceptHandler is told about every connection accepted on a port.
+	 */
+	public interface AcceptHandler {
+		/**
+		 * accepted() handles a newly accepted connection.
+		 *
+		 * @param channel the accepted channel, still in blocking mode
+		 * @param server the listening channel that accepted it
+		 */
+		public void accepted(SocketChannel channel, ServerSocketChannel server) throws IOException;
+	}
+
+	private final Selector selector;
+	private final IOWorker[] workers;
+	private final ServerConfig config;
+	private int nextWorker;
+
+	public ConnectionEngine(ServerConfig config) throws IOException{
+		selector = Selector.open();
+		this.config = config;
+		workers = new IOWorker[Math.max(1, config.ioThreads)];
+		for(int i = 0; i < workers.length; i++){
+			workers[i] = new IOWorker();
+			workers[i].start("io-" + i);
+		}
+		nextWorker = 0;
+	}
+
+	/**
+	 * listen() starts accepting connections on the given port.
+	 * Must be called before run() or from an AcceptHandler.
+	 *
+	 * @param port the port to listen on
+	 * @param handler the handler for accepted connections
+	 */
+	public void listen(int port, AcceptHandler handler) throws IOException{
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.socket().setReuseAddress(true);
+		server.socket().bind(new InetSocketAddress(port));
+		server.configureBlocking(false);
+		server.register(selector, SelectionKey.OP_ACCEPT, handler);
+	}
+
+	/**
+	 * open() creates a Connection for the channel on the next IOWorker.
+	 * The Connection does not read until it is registered.
+	 *
+	 * @param channel the client channel
+	 * @return the connection
+	 */
+	public Connection open(SocketChannel channel){
+		IOWorker worker = workers[nextWorker];
+		nextWorker = (nextWorker + 1) % workers.length;
+		return new Connection(channel, worker, config);
+	}
+
+	/**
+	 * run() is the accept loop. It runs on the thread that starts the server.
+	 */
+	@Override
+	public void run() {
+		while(true){
+			try {
+				selector.select();
+			} catch (IOException e) {
+				System.err.println(e.getMessage());
+				e.printStackTrace();
+				return;
+			}
+
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while(keys.hasNext()){
+				SelectionKey key = keys.next();
+				keys.remove();
+				if(!key.isValid() || !key.isAcceptable())
+					continue;
+
+				ServerSocketChannel server = (ServerSocketChannel) key.channel();
+				AcceptHandler handler = (AcceptHandler) key.attachment();
+				SocketChannel client = null;
+				try {
+					client = server.accept();
+					if(client == null)
+						continue;
+
+					client.socket().setTcpNoDelay(true);
+					handler.accepted(client, server);
+				} catch (IOException e) {
+					System.err.println(e.getMessage());
+					e.printStackTrace();
+					if(client != null){
+						try {
+							client.close();
+						} catch (IOException e1) {}
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,33 @@
+package server;
+
+import java.io.IOException;
+
+import shared.MessageReader;
+
+/**
+ * ConnectionHandler receives the messages that arrive on a Connection.
+ * Handlers are always called from the I/O thread that owns the Connection,
+ * so a handler never sees two of its messages at once.
+ *
+ * @author Andy Katz
+ *
+ */
+public interface ConnectionHandler {
+
+	/**
+	 * handleMessage() handles one frame read from the connection.
+	 *
+	 * @param connection the connection the frame arrived on
+	 * @param opcode the opcode of the frame
+	 * @param message the fields of the frame, only valid during the call
+	 * @throws IOException if the frame is malformed; the connection is closed
+	 */
+	public void handleMessage(Connection connection, int opcode, MessageReader message) throws IOException;
+
+	/**
+	 * disconnected() is called once when the connection is closed.
+	 *
+	 * @param connection the connection that was closed
+	 */
+	public void disconnected(Connection connection);
+}
@@ -0,0 +1,286 @@
+package server;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import shared.MessageReader;
+import shared.MessageWriter;
+import shared.Protocol;
+
+/**
+ * EventRecorder writes everything the clients do to a file: every connect,
+ * every message and every disconnect, with the time it happened. Replay reads
+ * the file back to run the same load against a server with no sockets.
+ *
+ * The file is a sequence of frames, each written as a MessageWriter writes
+ * them. The first is a START with the format and the wall clock time the
+ * recording began. After it come CONNECT and DISCONNECT, each holding the
+ * session and the microseconds since the start, and MESSAGE, holding the same
+ * followed by the opcode and the payload of the message as the client sent it.
+ *
+ * Events are copied into a queue by the thread that saw them, and a thread of
+ * its own writes them to a buffer that is flushed every second and when the
+ * server stops, so a crash loses at most the last second. No lock is held
+ * while an event is queued, so no message waits for the disk and no virtual
+ * thread is pinned. If the queue fills up, events are dropped and counted.
+ *
+ * @author Andy Katz
+ *
+ */
+public class EventRecorder implements Runnable {
+	static final int FORMAT = 1;
+
+	//Opcodes of the frames in a recording
+	static final int START = 0x00;
+	static final int CONNECT = 0x01;
+	static final int MESSAGE = 0x02;
+	static final int DISCONNECT = 0x03;
+
+	//Largest frame in a recording: a client frame and the fields before it
+	static final int MAX_FRAME = Protocol.MAX_CLIENT_FRAME + 32;
+
+	private static final int QUEUE_LIMIT = 64 * 1024;
+	private static final int BATCH = 1024;
+	private static final long FLUSH_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+	//When the recording began, as from System.nanoTime()
+	private final long start;
+	private final AtomicInteger sessions;
+	private final LinkedBlockingQueue<Event> queue;
+
+	//Only used by the writing thread once it is started
+	private final OutputStream out;
+	private final MessageWriter writer;
+	private boolean failed;
+
+	private Thread recorder;
+	private volatile boolean closed;
+
+	public EventRecorder(File file) throws IOException{
+		this(new FileOutputStream(file), System.nanoTime(), System.currentTimeMillis());
+	}
+
+	EventRecorder(OutputStream o, long startNanos, long startMillis) throws IOException{
+		out = new BufferedOutputStream(o, 64 * 1024);
+		writer = new MessageWriter();
+		start = startNanos;
+		sessions = new AtomicInteger(0);
+		queue = new LinkedBlockingQueue<Event>(QUEUE_LIMIT);
+		failed = false;
+		recorder = null;
+		closed = false;
+
+		writer.begin(START)
+			.writeVarInt(FORMAT)
+			.writeVarLong(startMillis);
+		writer.writeTo(out);
+	}
+
+	/**
+	 * start() writes queued events on a thread of its own, and writes those
+	 * still queued and closes the recording when the server stops.
+	 */
+	public void start(){
+		recorder = new Thread(this, "recorder");
+		recorder.setDaemon(true);
+		recorder.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			public void run() {
+				close();
+			}
+		}, "close recording"));
+	}
+
+	/**
+	 * connected() records a new client.
+	 *
+	 * @param now the time it connected, as from System.nanoTime()
+	 * @return the session of the client, for its later events
+	 */
+	public int connected(long now){
+		int session = sessions.incrementAndGet();
+		record(new Event(CONNECT, session, micros(now), 0, null));
+		return session;
+	}
+
+	/**
+	 * message() records a message from a client, leaving the reader where it was.
+	 *
+	 * @param session the session of the client
+	 * @param now the time it arrived, as from System.nanoTime()
+	 * @param opcode the opcode of the message
+	 * @param message the reader, at the start of the payload
+	 */
+	public void message(int session, long now, int opcode, MessageReader message){
+		record(new Event(MESSAGE, session, micros(now), opcode, message.copyRemaining()));
+	}
+
+	/**
+	 * disconnected() records that a client went away.
+	 *
+	 * @param session the session of the client
+	 * @param now the time it went, as from System.nanoTime()
+	 */
+	public void disconnected(int session, long now){
+		record(new Event(DISCONNECT, session, micros(now), 0, null));
+	}
+
+	/**
+	 * close() writes the events still queued and closes the recording. Later
+	 * events are not recorded. If the recording was never started, the events
+	 * are written on the calling thread.
+	 */
+	public void close(){
+		closed = true;
+		if(recorder == null){
+			run();
+			return;
+		}
+		try {
+			recorder.join(5000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * run() writes queued events until the recording is closed and nothing is
+	 * queued, flushing them every second.
+	 */
+	@Override
+	public void run() {
+		List<Event> batch = new ArrayList<Event>(BATCH);
+		long flushed = System.nanoTime();
+		while(true){
+			Event first;
+			try {
+				first = queue.poll(100, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				first = null;
+			}
+			if(first == null && closed)
+				break;
+
+			if(first != null){
+				batch.add(first);
+				queue.drainTo(batch, BATCH - 1);
+				for(Event event : batch){
+					write(event);
+				}
+				batch.clear();
+			}
+
+			long now = System.nanoTime();
+			if(now - flushed >= FLUSH_INTERVAL){
+				flush();
+				flushed = now;
+			}
+		}
+
+		flush();
+		failed = true;
+		try {
+			out.close();
+		} catch (IOException e) {
+			System.err.println("Could not close the recording: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * record() is a private helper that queues an event, counting it if it is
+	 * dropped.
+	 *
+	 * @param event the event
+	 */
+	private void record(Event event){
+		if(closed || !queue.offer(event))
+			ServerStats.droppedEvents.incrementAndGet();
+	}
+
+	/**
+	 * micros() is a private helper that gets the microseconds from the start of
+	 * the recording to a time.
+	 *
+	 * @param now the time, as from System.nanoTime()
+	 * @return the microseconds, never less than 0
+	 */
+	private long micros(long now){
+		return Math.max(0, TimeUnit.NANOSECONDS.toMicros(now - start));
+	}
+
+	/**
+	 * write() is a private helper that writes an event to the buffer, and stops
+	 * recording if it cannot.
+	 *
+	 * @param event the event
+	 */
+	private void write(Event event){
+		if(failed)
+			return;
+
+		writer.begin(event.kind)
+			.writeVarInt(event.session)
+			.writeVarLong(event.micros);
+		if(event.kind == MESSAGE){
+			writer.writeByte(event.opcode)
+				.writeBytes(event.payload, 0, event.payload.length);
+		}
+		try {
+			writer.writeTo(out);
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * flush() is a private helper that writes out whatever is buffered.
+	 */
+	private void flush(){
+		if(failed)
+			return;
+		try {
+			out.flush();
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * fail() is a private helper that stops recording after an error, so the
+	 * server goes on without it.
+	 *
+	 * @param e the error
+	 */
+	private void fail(IOException e){
+		System.err.println("Recording stopped: " + e.getMessage());
+		failed = true;
+	}
+
+	/**
+	 * Event is one event copied off the thread that saw it.
+	 */
+	private static class Event {
+		final int kind;
+		final int session;
+		final long micros;
+		final int opcode;
+		//Payload of a MESSAGE, null for the others
+		final byte[] payload;
+
+		Event(int kind, int session, long micros, int opcode, byte[] payload){
+			this.kind = kind;
+			this.session = session;
+			this.micros = micros;
+			this.opcode = opcode;
+			this.payload = payload;
+		}
+	}
+}
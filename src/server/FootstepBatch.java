@@ -0,0 +1,163 @@
+package server;
+
+import shared.MessageWriter;
+import shared.Protocol;
+
+/**
+ * FootstepBatch collects the footsteps taken in one room between two ticks.
+ * It keeps only the newest time for each cell and the newest cell for each
+ * player, so a tick sends each of them once however often they changed.
+ *
+ * @author Andy Katz
+ *
+ */
+public class FootstepBatch {
+
+	private final int gridX;
+	private final int gridY;
+	private final int height;
+
+	//Newest time of each cell in this tick, 0 if it was not stepped on
+	private final long[] times;
+	private int[] cells;
+	private int cellCount;
+
+	private int[] playerIds;
+	private int[] playerTypes;
+	private int[] playerCells;
+	private int playerCount;
+
+	public FootstepBatch(int x, int y, int width, int h){
+		gridX = x;
+		gridY = y;
+		height = h;
+
+		times = new long[width * height];
+		cells = new int[16];
+		cellCount = 0;
+
+		playerIds = new int[4];
+		playerTypes = new int[4];
+		playerCells = new int[4];
+		playerCount = 0;
+	}
+
+	/**
+	 * getGridX() gets the x coordinate of the room of this batch.
+	 *
+	 * @return the x coordinate
+	 */
+	public int getGridX(){
+		return gridX;
+	}
+
+	/**
+	 * getGridY() gets the y coordinate of the room of this batch.
+	 *
+	 * @return the y coordinate
+	 */
+	public int getGridY(){
+		return gridY;
+	}
+
+	/**
+	 * isEmpty() tells if no footsteps are waiting in the batch.
+	 *
+	 * @return true if it is empty
+	 */
+	public synchronized boolean isEmpty(){
+		return cellCount == 0 && playerCount == 0;
+	}
+
+	/**
+	 * add() records a footstep.
+	 *
+	 * @param x the x coordinate of the cell
+	 * @param y the y coordinate of the cell
+	 * @param time the time of the footstep
+	 * @param id the id of the player
+	 * @param type the type of the player
+	 * @return true if the batch was empty before, and so needs a tick
+	 */
+	public synchronized boolean add(int x, int y, long time, int id, int type){
+		boolean wasEmpty = cellCount == 0 && playerCount == 0;
+		int cell = x * height + y;
+
+		if(times[cell] == 0){
+			if(cellCount == cells.length)
+				cells = grow(cells);
+			cells[cellCount++] = cell;
+		}
+		times[cell] = Math.max(times[cell], time);
+
+		int p = 0;
+		while(p < playerCount && playerIds[p] != id)
+			p++;
+		if(p == playerCount){
+			if(playerCount == playerIds.length){
+				playerIds = grow(playerIds);
+				playerTypes = grow(playerTypes);
+				playerCells = grow(playerCells);
+			}
+			playerIds[p] = id;
+			playerCount++;
+		}
+		playerTypes[p] = type;
+		playerCells[p] = cell;
+
+		return wasEmpty;
+	}
+
+	/**
+	 * take() encodes the batch as a FOOTSTEP_BATCH frame and empties it.
+	 *
+	 * @param writer the writer to encode with
+	 * @return true if there was anything to encode
+	 */
+	public synchronized boolean take(MessageWriter writer){
+		if(cellCount == 0 && playerCount == 0)
+			return false;
+
+		long newest = 0;
+		for(int i = 0; i < cellCount; i++){
+			newest = Math.max(newest, times[cells[i]]);
+		}
+
+		writer.begin(Protocol.FOOTSTEP_BATCH)
+			.writeVarInt(gridX)
+			.writeVarInt(gridY)
+			.writeVarLong(newest)
+			.writeVarInt(cellCount);
+		for(int i = 0; i < cellCount; i++){
+			int cell = cells[i];
+			writer.writeVarInt(cell / height)
+				.writeVarInt(cell % height)
+				.writeVarLong(newest - times[cell]);
+			times[cell] = 0;
+		}
+
+		writer.writeVarInt(playerCount);
+		for(int i = 0; i < playerCount; i++){
+			writer.writeVarInt(playerIds[i])
+				.writeVarInt(playerTypes[i])
+				.writeVarInt(playerCells[i] / height)
+				.writeVarInt(playerCells[i] % height);
+		}
+
+		cellCount = 0;
+		playerCount = 0;
+		return true;
+	}
+
+	/**
+	 * grow() is a private helper that doubles an array.
+	 *
+	 * @param array the array
+	 * @return the bigger copy
+	 */
+	private static int[] grow(int[] array){
+		int[] bigger = new int[array.length * 2];
+		System.arraycopy(array, 0, bigger, 0, array.length);
+		return bigger;
+	}
+}
@@ -0,0 +1,56 @@
+package server;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+
+import org.junit.Test;
+
+import shared.MessageReader;
+import shared.MessageWriter;
+import shared.Protocol;
+
+
+public class FootstepBatchTest {
+
+	/**
+	 * Tests that a batch keeps only the newest time of a cell and the newest
+	 * cell of a player.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void Coalesces() throws Exception{
+		FootstepBatch batch = new FootstepBatch(2, 3, 20, 15);
+		assertTrue(batch.add(1, 1, 1000, 7, 0));
+		assertFalse(batch.add(1, 1, 3000, 7, 0));
+		assertFalse(batch.add(1, 1, 2000, 8, 1));
+		assertFalse(batch.add(1, 2, 2500, 7, 0));
+
+		MessageWriter writer = new MessageWriter();
+		assertTrue(batch.take(writer));
+		MessageReader reader = new MessageReader();
+		assertEquals(Protocol.FOOTSTEP_BATCH, reader.readFrame(new ByteArrayInputStream(writer.toByteBuffer().array()), Protocol.MAX_SERVER_FRAME));
+
+		assertEquals(2, reader.readVarInt());
+		assertEquals(3, reader.readVarInt());
+		long newest = reader.readVarLong();
+		assertEquals(3000, newest);
+
+		assertEquals(2, reader.readVarInt());
+		assertEquals(1, reader.readVarInt());
+		assertEquals(1, reader.readVarInt());
+		assertEquals(3000, newest - reader.readVarLong());
+		assertEquals(1, reader.readVarInt());
+		assertEquals(2, reader.readVarInt());
+		assertEquals(2500, newest - reader.readVarLong());
+
+		assertEquals(2, reader.readVarInt());
+		assertEquals(7, reader.readVarInt());
+		assertEquals(0, reader.readVarInt());
+		assertEquals(1, reader.readVarInt());
+		assertEquals(2, reader.readVarInt());
+
+		assertFalse(batch.take(writer));
+	}
+
+}
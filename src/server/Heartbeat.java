@@ -0,0 +1,62 @@
+package server;
+
+import shared.MessageWriter;
+import shared.Protocol;
+
+/**
+ * Heartbeat watches one Connection for signs of life. When the client has
+ * been quiet for the ping interval it is sent a PING, which a live client
+ * answers with a PONG; when it has been quiet for the idle timeout it is
+ * disconnected, which removes its player from the game.
+ *
+ * Reading does not touch the TimerWheel; the Heartbeat looks at when the
+ * Connection last read when it fires, and schedules itself again for then.
+ *
+ * @author Andy Katz
+ *
+ */
+public class Heartbeat implements TimerWheel.Task {
+
+	private final Connection connection;
+	private final long pingInterval;
+	private final long idleTimeout;
+
+	public Heartbeat(Connection c, ServerConfig config){
+		connection = c;
+		pingInterval = config.pingInterval;
+		idleTimeout = config.idleTimeout;
+	}
+
+	/**
+	 * start() starts watching the Connection.
+	 *
+	 * @param wheel the wheel to run on
+	 */
+	public void start(TimerWheel wheel){
+		wheel.schedule(this, pingInterval);
+	}
+
+	@Override
+	public void expired(TimerWheel wheel) {
+		if(connection.isClosed())
+			return;
+
+		long idle = System.currentTimeMillis() - connection.getLastRead();
+		if(idle >= idleTimeout){
+			System.err.println("Client idle for " + idle + "ms, closing connection");
+			ServerStats.idleEvictions.incrementAndGet();
+			connection.closeLater();
+			return;
+		}
+
+		if(idle >= pingInterval){
+			MessageWriter writer = new MessageWriter();
+			writer.begin(Protocol.PING).writeVarLong(System.currentTimeMillis());
+			connection.send(writer.toByteBuffer());
+			wheel.schedule(this, Math.min(pingInterval, idleTimeout - idle));
+		}
+		else{
+			wheel.schedule(this, pingInterval - idle);
+		}
+	}
+}
@@ -0,0 +1,132 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * IOWorker is one of the I/O threads of the ConnectionEngine. It owns a
+ * Selector and does all of the reading and writing for the Connections
+ * registered with it.
+ *
+ * @author Andy Katz
+ *
+ */
+public class IOWorker implements Runnable {
+	static final int BATCH_SIZE = 64;
+
+	private final Selector selector;
+	private final ConcurrentLinkedQueue<Connection> registrations;
+	private final ConcurrentLinkedQueue<Connection> flushes;
+	private final ByteBuffer[] batch;
+	private Thread thread;
+
+	public IOWorker() throws IOException{
+		selector = Selector.open();
+		registrations = new ConcurrentLinkedQueue<Connection>();
+		flushes = new ConcurrentLinkedQueue<Connection>();
+		batch = new ByteBuffer[BATCH_SIZE];
+	}
+
+	/**
+	 * start() starts the worker on its own thread.
+	 *
+	 * @param name the name of the thread
+	 */
+	public void start(String name){
+		thread = new Thread(this, name);
+		thread.start();
+	}
+
+	/**
+	 * getSelector() gets the selector of this worker.
+	 *
+	 * @return the selector
+	 */
+	Selector getSelector(){
+		return selector;
+	}
+
+	/**
+	 * getBatch() gets the array the worker gathers frames into for writing.
+	 *
+	 * @return the array, empty between uses
+	 */
+	ByteBuffer[] getBatch(){
+		return batch;
+	}
+
+	/**
+	 * register() queues a Connection to be registered with this worker.
+	 *
+	 * @param c the connection
+	 */
+	void register(Connection c){
+		registrations.add(c);
+		selector.wakeup();
+	}
+
+	/**
+	 * scheduleFlush() queues a Connection to have its output written.
+	 *
+	 * @param c the connection
+	 */
+	void scheduleFlush(Connection c){
+		flushes.add(c);
+		if(Thread.currentThread() != thread)
+			selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		while(true){
+			try {
+				selector.select();
+			} catch (IOException e) {
+				System.err.println(e.getMessage());
+				e.printStackTrace();
+				return;
+			}
+
+			Connection c;
+			while((c = registrations.poll()) != null){
+				try {
+					c.attach();
+				} catch (IOException e) {
+					c.close();
+				}
+			}
+
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while(keys.hasNext()){
+				SelectionKey key = keys.next();
+				keys.remove();
+
+				Connection connection = (Connection) key.attachment();
+				try {
+					if(key.isValid() && key.isReadable())
+						connection.read();
+					if(key.isValid() && key.isWritable())
+						connection.flush();
+				} catch (IOException e) {
+					connection.close();
+				} catch (RuntimeException e) {
+					//A bad message should only cost the client that sent it
+					e.printStackTrace();
+					connection.close();
+				}
+			}
+
+			while((c = flushes.poll()) != null){
+				try {
+					c.flush();
+				} catch (IOException e) {
+					c.close();
+				}
+			}
+		}
+	}
+}
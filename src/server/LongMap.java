@@ -0,0 +1,197 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * LongMap maps long keys to values without boxing the keys. It is an open
+ * addressing hash table: keys and values sit in two flat arrays, and a key
+ * that collides goes in the next free slot.
+ *
+ * Lookups take no lock and may run while the map changes; changes take the
+ * lock of the map. A removed key leaves a marker behind until the table is
+ * next resized, so that lookups never lose their way.
+ *
+ * Keys must not be negative.
+ *
+ * @author Andy Katz
+ *
+ */
+public class LongMap<V> {
+	//Keys are stored plus one, so that 0 means a free slot
+	private static final long FREE = 0;
+	private static final Object REMOVED = new Object();
+
+	private volatile Table table;
+	private int size;
+	private int used;
+
+	public LongMap(){
+		table = new Table(16);
+		size = 0;
+		used = 0;
+	}
+
+	/**
+	 * get() gets the value of a key.
+	 *
+	 * @param key the key
+	 * @return the value, or null if there is none
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(long key){
+		Table t = table;
+		long stored = key + 1;
+		for(int i = t.index(stored); ; i = (i + 1) & t.mask){
+			long k = t.keys.get(i);
+			if(k == FREE)
+				return null;
+			if(k == stored){
+				Object value = t.values.get(i);
+				return value == REMOVED ? null : (V) value;
+			}
+		}
+	}
+
+	/**
+	 * putIfAbsent() maps a key to a value unless it already has one.
+	 *
+	 * @param key the key
+	 * @param value the value
+	 * @return the value the key already had, or null if it was put
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized V putIfAbsent(long key, V value){
+		if((used + 1) * 4 > table.keys.length() * 3)
+			resize();
+
+		Table t = table;
+		long stored = key + 1;
+		int i = t.index(stored);
+		for(; ; i = (i + 1) & t.mask){
+			long k = t.keys.get(i);
+			if(k == stored){
+				Object old = t.values.get(i);
+				if(old != REMOVED)
+					return (V) old;
+				t.values.set(i, value);
+				size++;
+				return null;
+			}
+			if(k == FREE)
+				break;
+		}
+
+		//The value goes in before the key, so a lookup that finds the key finds it
+		t.values.set(i, value);
+		t.keys.set(i, stored);
+		size++;
+		used++;
+		return null;
+	}
+
+	/**
+	 * remove() removes a key if it has the given value.
+	 *
+	 * @param key the key
+	 * @param value the value
+	 * @return true if it was removed
+	 */
+	public synchronized boolean remove(long key, V value){
+		Table t = table;
+		long stored = key + 1;
+		for(int i = t.index(stored); ; i = (i + 1) & t.mask){
+			long k = t.keys.get(i);
+			if(k == FREE)
+				return false;
+			if(k == stored){
+				if(t.values.get(i) != value)
+					return false;
+				t.values.set(i, REMOVED);
+				size--;
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * size() gets the number of keys in the map.
+	 *
+	 * @return the number of keys
+	 */
+	public synchronized int size(){
+		return size;
+	}
+
+	/**
+	 * values() gets the values in the map as they are now.
+	 *
+	 * @return a copy of the values
+	 */
+	@SuppressWarnings("unchecked")
+	public List<V> values(){
+		Table t = table;
+		ArrayList<V> values = new ArrayList<V>();
+		for(int i = 0; i < t.keys.length(); i++){
+			Object value = t.values.get(i);
+			if(value != null && value != REMOVED && t.keys.get(i) != FREE)
+				values.add((V) value);
+		}
+		return values;
+	}
+
+	/**
+	 * resize() is a private helper that moves the keys into a new table, twice as
+	 * big if it is more than half full, and leaves the removed markers behind.
+	 */
+	private void resize(){
+		Table old = table;
+		int capacity = old.keys.length();
+		if(size * 2 > capacity)
+			capacity *= 2;
+
+		Table t = new Table(capacity);
+		for(int i = 0; i < old.keys.length(); i++){
+			long k = old.keys.get(i);
+			Object value = old.values.get(i);
+			if(k == FREE || value == REMOVED)
+				continue;
+
+			int j = t.index(k);
+			while(t.keys.get(j) != FREE)
+				j = (j + 1) & t.mask;
+			t.values.set(j, value);
+			t.keys.set(j, k);
+		}
+		used = size;
+		table = t;
+	}
+
+	/**
+	 * Table is the arrays of a LongMap, replaced whole when it is resized.
+	 */
+	private static class Table {
+		final AtomicLongArray keys;
+		final AtomicReferenceArray<Object> values;
+		final int mask;
+
+		Table(int capacity){
+			keys = new AtomicLongArray(capacity);
+			values = new AtomicReferenceArray<Object>(capacity);
+			mask = capacity - 1;
+		}
+
+		/**
+		 * index() gets the slot a key is looked for first.
+		 *
+		 * @param stored the key plus one
+		 * @return the slot
+		 */
+		int index(long stored){
+			long h = stored * 0x9E3779B97F4A7C15L;
+			return (int) (h ^ (h >>> 32)) & mask;
+		}
+	}
+}
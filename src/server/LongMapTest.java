@@ -0,0 +1,46 @@
+package server;
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+
+public class LongMapTest {
+
+	/**
+	 * Tests that keys can be put, found, removed and put again across resizes.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void PutGetRemove() throws Exception{
+		LongMap<String> map = new LongMap<String>();
+		for(long key = 0; key < 1000; key++){
+			assertNull(map.putIfAbsent(key * 10007, "v" + key));
+		}
+		assertEquals(1000, map.size());
+		assertEquals("v5", map.putIfAbsent(5 * 10007, "other"));
+
+		for(long key = 0; key < 1000; key += 2){
+			assertTrue(map.remove(key * 10007, map.get(key * 10007)));
+		}
+		assertFalse(map.remove(1 * 10007, "wrong"));
+		assertEquals(500, map.size());
+		assertEquals(500, map.values().size());
+
+		for(long key = 0; key < 1000; key++){
+			if(key % 2 == 0)
+				assertNull(map.get(key * 10007));
+			else
+				assertEquals("v" + key, map.get(key * 10007));
+		}
+
+		//Removed keys come back, and the markers they leave go on resizing
+		for(long key = 0; key < 5000; key++){
+			map.putIfAbsent(key * 10007, "w" + key);
+		}
+		assertEquals(5000, map.size());
+		assertEquals("w0", map.get(0));
+		assertEquals("v1", map.get(10007));
+	}
+
+}
@@ -0,0 +1,100 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * OutboundQueue holds the frames waiting to be written to one client. Any thread
+ * may offer frames; only the IOWorker that owns the connection takes them, a
+ * batch at a time, so that many small frames go out in one write.
+ *
+ * The queue is bounded by the number of bytes it holds.
+ *
+ * @author Andy Katz
+ *
+ */
+public class OutboundQueue {
+
+	private final ConcurrentLinkedQueue<ByteBuffer> frames;
+	private final AtomicInteger bytes;
+	private final int limit;
+
+	public OutboundQueue(int byteLimit){
+		frames = new ConcurrentLinkedQueue<ByteBuffer>();
+		bytes = new AtomicInteger(0);
+		limit = byteLimit;
+	}
+
+	/**
+	 * offer() adds a frame to the end of the queue if there is room for it.
+	 *
+	 * @param frame the frame
+	 * @return false if the queue is full
+	 */
+	public boolean offer(ByteBuffer frame){
+		int size = frame.limit();
+		if(bytes.addAndGet(size) > limit){
+			bytes.addAndGet(-size);
+			return false;
+		}
+
+		frames.add(frame);
+		return true;
+	}
+
+	/**
+	 * peek() fills the batch with the frames at the head of the queue without
+	 * taking them. Only called by the owning IOWorker.
+	 *
+	 * @param batch the array to fill
+	 * @return the number of frames put in the batch
+	 */
+	int peek(ByteBuffer[] batch){
+		int count = 0;
+		Iterator<ByteBuffer> it = frames.iterator();
+		while(count < batch.length && it.hasNext()){
+			batch[count++] = it.next();
+		}
+		return count;
+	}
+
+	/**
+	 * removeWritten() takes the frames at the head of the queue that have been
+	 * written completely. Only called by the owning IOWorker.
+	 */
+	void removeWritten(){
+		ByteBuffer frame;
+		while((frame = frames.peek()) != null && !frame.hasRemaining()){
+			frames.poll();
+			bytes.addAndGet(-frame.limit());
+		}
+	}
+
+	/**
+	 * isEmpty() tells if there is nothing waiting to be written.
+	 *
+	 * @return true if the queue is empty
+	 */
+	public boolean isEmpty(){
+		return frames.isEmpty();
+	}
+
+	/**
+	 * size() gets the number of bytes waiting to be written.
+	 *
+	 * @return the number of bytes
+	 */
+	public int size(){
+		return bytes.get();
+	}
+
+	/**
+	 * clear() drops everything in the queue.
+	 */
+	void clear(){
+		frames.clear();
+		bytes.set(0);
+	}
+}
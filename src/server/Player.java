@@ -1,31 +1,37 @@
 package server;
 
-import java.io.DataOutputStream;
-import java.io.IOException;
-import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import shared.MessageWriter;
+import shared.Protocol;
 
 /**
  * Player represents a player of the game.
  * 
+ * The position of a Player is read by other threads while its own connection
+ * moves it, so it is kept as an immutable Position that is replaced whole.
+ * 
  * @author Andy Katz
  *
  */
 public class Player {
-	static int nextID = 0;
+	private static final AtomicInteger nextID = new AtomicInteger(0);
 
-	private int x;
-	private int y;
-	private int type;
-	private int id;
-	OutputStream out;
+	private volatile Position position;
+	private final int type;
+	private final int id;
+	final Connection connection;
+	
+	//The room the ServerModel has the player indexed under
+	int roomX;
+	int roomY;
+	boolean indexed;
 	
-	public Player(int xCoord, int yCoord, int t, OutputStream o){
-		x = xCoord;
-		y = yCoord;
+	public Player(int xCoord, int yCoord, int t, Connection c){
+		position = new Position(xCoord, yCoord);
 		type = t;
-		out = o;
-		id = nextID++;
+		connection = c;
+		id = nextID.getAndIncrement();
 	}
 	
 	/**
@@ -33,7 +39,7 @@ public class Player {
 	 * @param xCoord the x coordinate
 	 */
 	public void setX(int xCoord){
-		x = xCoord;
+		position = new Position(xCoord, position.getY());
 	}
 	
 	/**
@@ -41,7 +47,28 @@ public class Player {
 	 * @param yCoord the y coordinate
 	 */
 	public void setY(int yCoord){
-		y = yCoord;
+		position = new Position(position.getX(), yCoord);
+	}
+	
+	/**
+	 * setPosition() sets both coordinates of the Player at once, so no other
+	 * thread sees one without the other.
+	 * 
+	 * @param xCoord the x coordinate
+	 * @param yCoord the y coordinate
+	 */
+	public void setPosition(int xCoord, int yCoord){
+		position = new Position(xCoord, yCoord);
+	}
+	
+	/**
+	 * getPosition() gets the position of the Player. The Position does not
+	 * change when the Player moves.
+	 * 
+	 * @return the position
+	 */
+	public Position getPosition(){
+		return position;
 	}
 	
 	/**
@@ -50,7 +77,7 @@ public class Player {
 	 * @return the x coordinate
 	 */
 	public int getX(){
-		return x;
+		return position.getX();
 	}
 	
 	/**
@@ -59,7 +86,7 @@ public class Player {
 	 * @return the y coordinate
 	 */
 	public int getY(){
-		return y;
+		return position.getY();
 	}
 	
 	/**
@@ -81,26 +108,60 @@ public class Player {
 	}
 	
 	/**
-	 * getStrean() gets the stream for communicating with the Player.
+	 * getConnection() gets the connection for communicating with the Player.
 	 * 
-	 * @return the stream
+	 * @return the connection
 	 */
-	public OutputStream getStream(){
-		return out;
+	public Connection getConnection(){
+		return connection;
 	}
 	
 	/**
 	 * sendInitializationInfo() sends the information to the client
 	 * so that it can initialize its sprite information.
-	 * @param objectPort 
+	 * 
+	 * @param version the protocol version of the session
+	 */
+	public void sendInitializationInfo(int version) {
+		Position p = position;
+		MessageWriter writer = new MessageWriter();
+		writer.begin(Protocol.WELCOME)
+			.writeVarInt(version)
+			.writeVarInt(id)
+			.writeVarInt(p.getX())
+			.writeVarInt(p.getY())
+			.writeVarInt(type);
+		connection.send(writer.toByteBuffer());
+	}
+	
+	/**
+	 * Position is where a Player is in the world at one moment.
 	 */
-	public void sendInitializationInfo(int objectPort) {
-		DataOutputStream dataOut = new DataOutputStream(out);
-		try {
-			dataOut.writeBytes(id + "\n" + x + "\n" + y + "\n" + type + "\n" + objectPort + "\n");
-			dataOut.flush();
-		} catch (IOException e) {
-			System.err.println(e.getMessage());
+	public static final class Position {
+		private final int x;
+		private final int y;
+		
+		public Position(int xCoord, int yCoord){
+			x = xCoord;
+			y = yCoord;
+		}
+		
+		/**
+		 * getX() gets the x coordinate.
+		 * 
+		 * @return the x coordinate
+		 */
+		public int getX(){
+			return x;
+		}
+		
+		/**
+		 * getY() gets the y coordinate.
+		 * 
+		 * @return the y coordinate
+		 */
+		public int getY(){
+			return y;
 		}
 	}
 }
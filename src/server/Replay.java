@@ -0,0 +1,301 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import shared.MessageReader;
+import shared.Percentiles;
+
+/**
+ * Replay runs a recording made by EventRecorder against a ServerModel with no
+ * sockets, to measure the server under a load that really happened. Each
+ * client in the recording gets a Connection whose frames are counted and
+ * thrown away as soon as they are queued, and the Ticker is run at its rate
+ * in the time of the recording, so chat and footsteps fan out as they would.
+ *
+ * Events are replayed either as fast as they can be handled or at the pace
+ * they were recorded. Either way each message is handled at its recorded time,
+ * so the rate limits refuse the same messages they refused when recorded.
+ * Players get random types, as they do on any server, so frames may differ
+ * a little in size.
+ *
+ * Run it with the recording and optionally "wall" for the recorded pace:
+ * java server.Replay recording.bin wall
+ *
+ * @author Andy Katz
+ *
+ */
+public class Replay {
+	//Values of the pace argument
+	public static final String PACE_MAX = "max";
+	public static final String PACE_WALL = "wall";
+
+	private final ServerModel model;
+	private final Ticker ticker;
+	private final boolean wallClock;
+	private final long period;
+
+	private final Map<Integer, ReplayConnection> sessions;
+	private final Percentiles handling;
+	private final Percentiles ticking;
+	private long events;
+	private long errors;
+	private long frames;
+	private long bytes;
+	private long elapsed;
+
+	public Replay(ServerConfig config, boolean wall){
+		model = new ServerModel(config.worldSize, config.chatLines, config.chatBytes);
+		//Sessions are ServerRunners, which find the world and settings here
+		ServerRunner.model = model;
+		ServerRunner.config = config;
+
+		ticker = new Ticker(model, config);
+		ticker.setRate(config.tickRate);
+		wallClock = wall;
+		period = 1000000000L / Math.max(1, config.tickRate);
+
+		sessions = new HashMap<Integer, ReplayConnection>();
+		handling = new Percentiles();
+		ticking = new Percentiles();
+		events = 0;
+		errors = 0;
+		frames = 0;
+		bytes = 0;
+		elapsed = 0;
+	}
+
+	public static void main(String[] args) {
+		if(args.length < 1){
+			System.err.println("Usage: java server.Replay <recording> [" + PACE_MAX + "|" + PACE_WALL + "]");
+			return;
+		}
+
+		Replay replay = new Replay(new ServerConfig(), args.length > 1 && PACE_WALL.equals(args[1]));
+		try {
+			InputStream in = new BufferedInputStream(new FileInputStream(args[0]), 64 * 1024);
+			try {
+				replay.run(in);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			System.err.println("Could not replay " + args[0] + ": " + e.getMessage());
+		}
+		System.out.println(replay.report());
+		System.out.println(ServerStats.report());
+	}
+
+	/**
+	 * run() replays a recording to its end.
+	 *
+	 * @param in the recording, ideally buffered
+	 * @throws IOException if the recording cannot be read
+	 */
+	public void run(InputStream in) throws IOException{
+		MessageReader reader = new MessageReader();
+		if(reader.readFrame(in, EventRecorder.MAX_FRAME) != EventRecorder.START
+				|| reader.readVarInt() != EventRecorder.FORMAT)
+			throw new ProtocolException("Not a recording this server can replay");
+		long startMillis = reader.readVarLong();
+
+		long start = System.nanoTime();
+		long nextTick = period;
+		while(true){
+			int kind;
+			try {
+				kind = reader.readFrame(in, EventRecorder.MAX_FRAME);
+			} catch (EOFException e) {
+				//The end, or a frame cut short by a crash while recording
+				break;
+			}
+			int session = reader.readVarInt();
+			long offset = TimeUnit.MICROSECONDS.toNanos(reader.readVarLong());
+
+			//Ticks that fell before this event run first
+			while(nextTick <= offset){
+				sleepUntil(start, nextTick);
+				tick(start + nextTick);
+				nextTick += period;
+			}
+			sleepUntil(start, offset);
+
+			long began = System.nanoTime();
+			handle(kind, session, start + offset, startMillis + TimeUnit.NANOSECONDS.toMillis(offset), reader);
+			handling.add(System.nanoTime() - began);
+			events++;
+		}
+		tick(start + nextTick);
+		elapsed = System.nanoTime() - start;
+	}
+
+	/**
+	 * report() describes how the replay went.
+	 *
+	 * @return the report
+	 */
+	public String report(){
+		double seconds = Math.max(1, elapsed) / 1e9;
+		return "Replayed " + events + " events from " + sessions.size() + " sessions in "
+				+ TimeUnit.NANOSECONDS.toMillis(elapsed) + "ms, "
+				+ (long) (events / seconds) + " events/s, " + errors + " errors\n"
+			+ "Sent " + frames + " frames, " + bytes + " bytes, "
+				+ (long) (frames / seconds) + " frames/s\n"
+			+ "Handling: " + handling.report(1000, "us") + "\n"
+			+ "Ticks (" + ticking.count() + "): " + ticking.report(1000, "us");
+	}
+
+	/**
+	 * getEvents() gets the number of events replayed so far.
+	 *
+	 * @return the number
+	 */
+	public long getEvents(){
+		return events;
+	}
+
+	/**
+	 * getFrames() gets the number of frames sent to the clients so far.
+	 *
+	 * @return the number
+	 */
+	public long getFrames(){
+		return frames;
+	}
+
+	/**
+	 * getModel() gets the world the recording is replayed against.
+	 *
+	 * @return the world
+	 */
+	public ServerModel getModel(){
+		return model;
+	}
+
+	/**
+	 * handle() is a private helper that replays one event.
+	 *
+	 * @param kind the opcode of the frame in the recording
+	 * @param session the session of the client
+	 * @param now the time of the event
+	 * @param millis the wall clock time of the event when it was recorded
+	 * @param reader the reader, just after the time
+	 * @throws ProtocolException if the frame is not an event
+	 */
+	private void handle(int kind, int session, long now, long millis, MessageReader reader) throws ProtocolException{
+		if(kind == EventRecorder.CONNECT){
+			ReplayConnection connection = new ReplayConnection(this);
+			connection.setHandler(new ServerRunner(ServerRunner.generatePlayer(connection), now));
+			sessions.put(session, connection);
+			return;
+		}
+
+		ReplayConnection connection = sessions.get(session);
+		if(connection == null)
+			throw new ProtocolException("Event for unknown session " + session);
+
+		if(kind == EventRecorder.MESSAGE){
+			int opcode = reader.readByte();
+			try {
+				((ServerRunner) connection.getHandler()).handleMessage(opcode, reader, now, millis);
+			} catch (IOException e) {
+				//The server drops a client that sends a bad message
+				errors++;
+				connection.close();
+			} catch (RuntimeException e) {
+				//So does it for a message that throws, and goes on with the others
+				errors++;
+				connection.close();
+			}
+		}
+		else if(kind == EventRecorder.DISCONNECT){
+			connection.close();
+		}
+		else{
+			throw new ProtocolException("Unknown event " + kind);
+		}
+	}
+
+	/**
+	 * tick() is a private helper that runs and times one tick.
+	 *
+	 * @param now the time of the tick in the recording
+	 */
+	private void tick(long now){
+		long began = System.nanoTime();
+		ticker.tick(wallClock ? began : now);
+		ticking.add(System.nanoTime() - began);
+	}
+
+	/**
+	 * sleepUntil() is a private helper that sleeps until a time in the recording when
+	 * replaying at the recorded pace.
+	 *
+	 * @param start when the replay started
+	 * @param offset the nanoseconds since the start of the recording
+	 */
+	private void sleepUntil(long start, long offset){
+		if(!wallClock)
+			return;
+
+		long left = start + offset - System.nanoTime();
+		if(left <= 0)
+			return;
+		try {
+			TimeUnit.NANOSECONDS.sleep(left);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+
+
+	/**
+	 * ReplayConnection is a Connection with no socket. Its frames are counted
+	 * and taken off the queue as soon as they are sent.
+	 */
+	private static class ReplayConnection extends Connection {
+		private final Replay replay;
+		private final ByteBuffer[] batch;
+
+		ReplayConnection(Replay r){
+			super(ServerRunner.config);
+			replay = r;
+			batch = new ByteBuffer[BlockingConnection.BATCH_SIZE];
+		}
+
+		@Override
+		public void register(){
+		}
+
+		@Override
+		void wakeWriter(){
+			if(beginFlush()){
+				close();
+				return;
+			}
+
+			int count;
+			while((count = getOutbound().peek(batch)) > 0){
+				for(int i = 0; i < count; i++){
+					replay.frames++;
+					replay.bytes += batch[i].remaining();
+					batch[i].position(batch[i].limit());
+				}
+				getOutbound().removeWritten();
+			}
+		}
+
+		@Override
+		void closeSocket(){
+		}
+	}
+}
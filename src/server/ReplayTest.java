@@ -0,0 +1,131 @@
+package server;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import org.junit.Test;
+
+import shared.Game;
+import shared.MessageReader;
+import shared.MessageWriter;
+import shared.Protocol;
+
+
+public class ReplayTest {
+
+	/**
+	 * Tests that a recording replays into the same world, with the chat line and
+	 * footstep it recorded sent out to the other client, and that a recording
+	 * cut short by a crash replays up to where it stops.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void RecordAndReplay() throws Exception{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		long start = System.nanoTime();
+		long millis = System.currentTimeMillis();
+		EventRecorder recorder = new EventRecorder(out, start, millis);
+		MessageWriter writer = new MessageWriter();
+
+		int andy = recorder.connected(start);
+		int drew = recorder.connected(start + 1000000);
+		record(recorder, andy, start + 2000000, writer.begin(Protocol.HELLO)
+				.writeVarInt(Protocol.VERSION)
+				.writeVarInt(0));
+		record(recorder, drew, start + 3000000, writer.begin(Protocol.HELLO)
+				.writeVarInt(Protocol.VERSION)
+				.writeVarInt(0));
+		record(recorder, andy, start + 4000000, writer.begin(Protocol.MESSAGE)
+				.writeString("andy: hi"));
+		record(recorder, andy, start + 5000000, writer.begin(Protocol.FOOTSTEP)
+				.writeVarInt(0)
+				.writeVarInt(0)
+				.writeVarInt(3)
+				.writeVarInt(4)
+				.writeVarLong(millis + 5));
+		recorder.disconnected(andy, start + 200000000);
+		recorder.close();
+
+		Replay replay = new Replay(new ServerConfig(), false);
+		replay.run(new ByteArrayInputStream(out.toByteArray()));
+		assertEquals(7, replay.getEvents());
+		assertEquals("andy: hi", replay.getModel().getRoom(0, 0).getHistory().get(0));
+		assertEquals(millis + 5, replay.getModel().getRoom(0, 0).getTime(3, 4));
+		//Two WELCOMEs, the line and the footstep batch to drew, and at least the line to andy
+		assertTrue(replay.getFrames() >= 5);
+
+		byte[] torn = out.toByteArray();
+		replay = new Replay(new ServerConfig(), false);
+		replay.run(new ByteArrayInputStream(torn, 0, torn.length - 2));
+		assertEquals(6, replay.getEvents());
+	}
+
+	/**
+	 * Tests that a bad message, a footstep in a room outside the world or in a
+	 * cell outside its room, only drops the client that sent it and the replay
+	 * goes on.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void BadMessage() throws Exception{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		long start = System.nanoTime();
+		long millis = System.currentTimeMillis();
+		EventRecorder recorder = new EventRecorder(out, start, millis);
+		MessageWriter writer = new MessageWriter();
+
+		int andy = recorder.connected(start);
+		int drew = recorder.connected(start + 1000000);
+		record(recorder, andy, start + 2000000, writer.begin(Protocol.HELLO)
+				.writeVarInt(Protocol.VERSION)
+				.writeVarInt(0));
+		record(recorder, drew, start + 3000000, writer.begin(Protocol.HELLO)
+				.writeVarInt(Protocol.VERSION)
+				.writeVarInt(0));
+		record(recorder, andy, start + 4000000, writer.begin(Protocol.FOOTSTEP)
+				.writeVarInt(-5)
+				.writeVarInt(1 << 20)
+				.writeVarInt(3)
+				.writeVarInt(4)
+				.writeVarLong(millis + 4));
+		record(recorder, drew, start + 5000000, writer.begin(Protocol.FOOTSTEP)
+				.writeVarInt(0)
+				.writeVarInt(0)
+				.writeVarInt(3)
+				.writeVarInt(4)
+				.writeVarLong(millis + 5));
+		record(recorder, drew, start + 6000000, writer.begin(Protocol.FOOTSTEP)
+				.writeVarInt(0)
+				.writeVarInt(0)
+				.writeVarInt(Game.width / Game.TILE_SIZE)
+				.writeVarInt(4)
+				.writeVarLong(millis + 6));
+		recorder.close();
+
+		Replay replay = new Replay(new ServerConfig(), false);
+		replay.run(new ByteArrayInputStream(out.toByteArray()));
+		assertEquals(7, replay.getEvents());
+		assertTrue(replay.report().contains(" 2 errors"));
+		assertEquals(millis + 5, replay.getModel().getRoom(0, 0).getTime(3, 4));
+	}
+
+	/**
+	 * record() is a private helper that records a message as if a client sent it.
+	 *
+	 * @param recorder the recorder
+	 * @param session the session of the client
+	 * @param now the time it arrived
+	 * @param writer the writer holding the message
+	 */
+	private static void record(EventRecorder recorder, int session, long now, MessageWriter writer) throws Exception{
+		ByteArrayOutputStream frame = new ByteArrayOutputStream();
+		writer.writeTo(frame);
+		MessageReader reader = new MessageReader();
+		int opcode = reader.readFrame(new ByteArrayInputStream(frame.toByteArray()), Protocol.MAX_CLIENT_FRAME);
+		recorder.message(session, now, opcode, reader);
+	}
+
+}
@@ -0,0 +1,331 @@
+package server;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import shared.MessageReader;
+import shared.MessageWriter;
+import shared.Protocol;
+import shared.Room;
+import shared.RoomCodec;
+
+/**
+ * RoomSlot holds everything the ServerModel keeps for one room of the world:
+ * the Room itself, the players in it, its cached snapshot and its batch of
+ * footsteps. Slots are made the first time a room is touched.
+ *
+ * A room nobody has touched for a while is released: its Room is encoded as a
+ * snapshot and kept only as those bytes until it is touched again, and a room
+ * nothing ever happened in is dropped altogether. The bytes of a released
+ * room may be moved into the file of a WorldStore once it has saved them.
+ *
+ * When the Room is made, chat lines logged after it was saved are added from
+ * the ChatLog, so that a restarted server only reads the rooms it needs.
+ *
+ * @author Andy Katz
+ *
+ */
+public class RoomSlot {
+
+	private final int gridX;
+	private final int gridY;
+	private final int width;
+	private final int height;
+	private final int historyLines;
+	private final int historyBytes;
+	private final ChatLog chatLog;
+
+	private final Set<Player> occupants;
+	private volatile Room room;
+	private volatile long lastUsed;
+	private SnapshotCache snapshot;
+	private FootstepBatch batch;
+	//The encoded Room while it is released
+	private ByteBuffer compact;
+	private boolean dropped;
+
+	public RoomSlot(int x, int y, int w, int h, int lines, int bytes, ChatLog log){
+		gridX = x;
+		gridY = y;
+		width = w;
+		height = h;
+		historyLines = lines;
+		historyBytes = bytes;
+		chatLog = log;
+		occupants = Collections.newSetFromMap(new ConcurrentHashMap<Player, Boolean>());
+		room = null;
+		lastUsed = System.currentTimeMillis();
+		compact = null;
+		dropped = false;
+	}
+
+	/**
+	 * getGridX() gets the x coordinate of the room.
+	 *
+	 * @return the x coordinate
+	 */
+	public int getGridX(){
+		return gridX;
+	}
+
+	/**
+	 * getGridY() gets the y coordinate of the room.
+	 *
+	 * @return the y coordinate
+	 */
+	public int getGridY(){
+		return gridY;
+	}
+
+	/**
+	 * room() gets the Room, bringing it back if it was released.
+	 *
+	 * @return the Room, or null if the slot was dropped and a new one should be used
+	 */
+	public Room room(){
+		Room r = room;
+		if(r != null){
+			//release() clears the Room before it reads lastUsed, so if the Room is
+			//still there after lastUsed is written, release() will see it
+			lastUsed = System.currentTimeMillis();
+			if(room == r)
+				return r;
+		}
+		return load();
+	}
+
+	/**
+	 * snapshot() gets the ROOM frame of the Room from its cache.
+	 *
+	 * @param window how many milliseconds old a footstep may be, 0 for all
+	 * @param writer a writer to encode with if needed
+	 * @return a read-only buffer of the frame, or null if the slot was dropped
+	 */
+	public ByteBuffer snapshot(int window, MessageWriter writer){
+		SnapshotCache cache;
+		do{
+			//Loaded without the lock, which load() must not be called under
+			if(room() == null)
+				return null;
+			synchronized(this){
+				//Null if the room was released again just now
+				cache = snapshot;
+			}
+		}while(cache == null);
+		return cache.get(window, writer);
+	}
+
+	/**
+	 * batch() gets the batch that the footsteps of the room are collected in.
+	 *
+	 * @return the batch, or null if the slot was dropped
+	 */
+	public synchronized FootstepBatch batch(){
+		if(dropped)
+			return null;
+		if(batch == null)
+			batch = new FootstepBatch(gridX, gridY, width / Room.TILE_SIZE, height / Room.TILE_SIZE);
+		return batch;
+	}
+
+	/**
+	 * getOccupants() gets the players in the room.
+	 *
+	 * @return the players
+	 */
+	public Set<Player> getOccupants(){
+		return occupants;
+	}
+
+	/**
+	 * enter() adds a player to the room.
+	 *
+	 * @param p the player
+	 * @return false if the slot was dropped, and a new one should be used
+	 */
+	public synchronized boolean enter(Player p){
+		if(dropped)
+			return false;
+
+		occupants.add(p);
+		return true;
+	}
+
+	/**
+	 * leave() removes a player from the room.
+	 *
+	 * @param p the player
+	 */
+	public void leave(Player p){
+		occupants.remove(p);
+	}
+
+	/**
+	 * release() releases the room if it is empty and nobody has touched it
+	 * since the given time.
+	 *
+	 * @param idleSince the time before which it must have been last touched
+	 * @return true if the slot is now dropped and can be forgotten
+	 */
+	public synchronized boolean release(long idleSince){
+		if(!occupants.isEmpty() || (batch != null && !batch.isEmpty()))
+			return false;
+
+		Room r = room;
+		if(r != null){
+			room = null;
+			if(lastUsed >= idleSince){
+				room = r;
+				return false;
+			}
+
+			snapshot = null;
+			batch = null;
+			compact = r.getVersion() == 0 ? null : encode(r);
+		}
+
+		if(compact == null){
+			dropped = true;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * checkpoint() gets the room as the bytes it is kept as while released, for a
+	 * WorldStore to save.
+	 *
+	 * @return read-only bytes, to be read through a duplicate, or null if nothing
+	 * ever happened in the room
+	 */
+	public ByteBuffer checkpoint(){
+		Room r;
+		ByteBuffer bytes;
+		synchronized(this){
+			if(dropped)
+				return null;
+			r = room;
+			bytes = compact;
+		}
+		if(r == null)
+			return bytes;
+		return r.getVersion() == 0 ? null : encode(r);
+	}
+
+	/**
+	 * relocate() keeps the released bytes of the room in another buffer holding
+	 * the same bytes, if the room is still released as the given bytes.
+	 *
+	 * @param from the bytes the room should be released as, null for a new slot
+	 * @param to the buffer to keep instead
+	 * @return true if the room now uses the buffer
+	 */
+	public synchronized boolean relocate(ByteBuffer from, ByteBuffer to){
+		if(dropped || room != null || compact != from)
+			return false;
+
+		compact = to;
+		return true;
+	}
+
+	/**
+	 * isLoaded() tells if the Room is held whole, rather than released.
+	 *
+	 * @return true if it is loaded
+	 */
+	public boolean isLoaded(){
+		return room != null;
+	}
+
+	/**
+	 * load() is a private helper that makes the Room, from its released bytes
+	 * if it has any. The Room is decoded and brought up to date from the log
+	 * without the lock, which is only held to copy the bytes and to publish the
+	 * Room; if another thread published one first, that one is used.
+	 *
+	 * @return the Room, or null if the slot was dropped
+	 */
+	private Room load(){
+		byte[] bytes = null;
+		synchronized(this){
+			lastUsed = System.currentTimeMillis();
+			if(room != null || dropped)
+				return room;
+			//Copied now, as a WorldStore may write over a file it is in later
+			if(compact != null){
+				bytes = new byte[compact.remaining()];
+				compact.duplicate().get(bytes);
+			}
+		}
+
+		Room r = new Room(width, height, gridX, gridY, historyLines, historyBytes);
+		if(bytes != null)
+			restore(bytes, r);
+		if(chatLog != null)
+			chatLog.recover(r, historyLines);
+
+		synchronized(this){
+			lastUsed = System.currentTimeMillis();
+			if(room != null || dropped)
+				return room;
+
+			//relocate() only ever swaps the bytes for the same bytes elsewhere
+			compact = null;
+			snapshot = new SnapshotCache(r);
+			room = r;
+			return r;
+		}
+	}
+
+	/**
+	 * encode() is a private helper that encodes a Room, with all of its chat
+	 * lines, to keep while released.
+	 *
+	 * @param r the Room
+	 * @return read-only bytes
+	 */
+	private static ByteBuffer encode(Room r){
+		MessageWriter writer = new MessageWriter();
+		writer.begin(Protocol.ROOM);
+		RoomCodec.encode(r, 0, Integer.MAX_VALUE, writer);
+		ByteBuffer frame = writer.toByteBuffer();
+		byte[] bytes = new byte[frame.remaining()];
+		frame.get(bytes);
+		return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+	}
+
+	/**
+	 * restore() is a private helper that copies a released Room into a new one.
+	 * The new Room has a new epoch, so clients holding a copy of the old one are
+	 * sent it whole rather than a delta between two histories. Chat lines keep
+	 * their numbers.
+	 *
+	 * @param bytes the released Room
+	 * @param r the new Room
+	 */
+	private static void restore(byte[] bytes, Room r){
+		try {
+			MessageReader reader = new MessageReader();
+			reader.readFrame(new ByteArrayInputStream(bytes), bytes.length);
+			Room old = RoomCodec.decode(reader);
+			r.truncateHistory(old.getFirstLine());
+			for(int x = 0; x < old.getWidth(); x++){
+				for(int y = 0; y < old.getHeight(); y++){
+					long time = old.getTime(x, y);
+					if(time != 0)
+						r.updateTime(x, y, time);
+				}
+			}
+			for(String line : old.getHistory()){
+				r.addLine(line);
+			}
+		} catch (IOException e) {
+			//The bytes were written by encode(), so this does not happen
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package server;
+
+import shared.Room;
+
+/**
+ * ServerConfig holds the settings that the server is started with.
+ * Every setting can be overridden with a system property, for example
+ * -Dserver.ioThreads=4.
+ *
+ * @author Andy Katz
+ *
+ */
+public class ServerConfig {
+	public static final int SERVER_PORT = 2219;
+
+	//Values of server.mode
+	public static final String MODE_NIO = "nio";
+	public static final String MODE_PLATFORM = "platform";
+	public static final String MODE_VIRTUAL = "virtual";
+
+	public final int port;
+	public final String mode;
+	public final int ioThreads;
+	public final int outboundLimit;
+	public final int outboundHigh;
+	public final int writeTimeout;
+	public final int tickRate;
+	public final int degradeLag;
+	public final int degradeRooms;
+	public final int footstepRate;
+	public final int footstepBurst;
+	public final int messageRate;
+	public final int messageBurst;
+	public final int roomRate;
+	public final int roomBurst;
+	public final int statsInterval;
+	public final int pingInterval;
+	public final int idleTimeout;
+	public final int worldSize;
+	public final int roomIdle;
+	public final int chatLines;
+	public final int chatBytes;
+	public final String store;
+	public final int checkpointInterval;
+	public final long chatSegment;
+	public final long chatRetain;
+	public final String record;
+
+	public ServerConfig(){
+		port = Integer.getInteger("server.port", SERVER_PORT);
+		mode = System.getProperty("server.mode", MODE_NIO);
+		ioThreads = Integer.getInteger("server.ioThreads", Runtime.getRuntime().availableProcessors());
+		outboundLimit = Integer.getInteger("server.outboundLimit", 1024 * 1024);
+		//Past this many queued bytes footsteps are dropped instead of queued
+		outboundHigh = Integer.getInteger("server.outboundHigh", outboundLimit / 4);
+		//Milliseconds a client may go without taking any bytes while some wait
+		writeTimeout = Integer.getInteger("server.writeTimeout", 10000);
+		tickRate = Integer.getInteger("server.tickRate", 20);
+		//Milliseconds a tick may start late before footsteps are thinned, 0 for never
+		degradeLag = Integer.getInteger("server.degradeLag", 1000 / Math.max(1, tickRate) / 2);
+		//Rooms that may wait for a tick before footsteps are thinned, 0 for no limit
+		degradeRooms = Integer.getInteger("server.degradeRooms", 0);
+		//Messages of each type a client may send per second and in one burst, rate 0 for no limit
+		footstepRate = Integer.getInteger("server.footstepRate", 40);
+		footstepBurst = Integer.getInteger("server.footstepBurst", 40);
+		messageRate = Integer.getInteger("server.messageRate", 5);
+		messageBurst = Integer.getInteger("server.messageBurst", 10);
+		roomRate = Integer.getInteger("server.roomRate", 10);
+		roomBurst = Integer.getInteger("server.roomBurst", 20);
+		statsInterval = Integer.getInteger("server.statsInterval", 60);
+		//Milliseconds a client may be quiet before it is pinged, and before it is dropped
+		pingInterval = Integer.getInteger("server.pingInterval", 15000);
+		idleTimeout = Integer.getInteger("server.idleTimeout", 45000);
+		//Rooms along each side of the world
+		worldSize = Integer.getInteger("server.worldSize", ServerModel.DEFAULT_WORLD_SIZE);
+		//Milliseconds an empty room is kept whole after it was last touched
+		roomIdle = Integer.getInteger("server.roomIdle", 5 * 60 * 1000);
+		//Chat lines and bytes of them each room keeps; older lines are dropped
+		chatLines = Integer.getInteger("server.chatLines", Room.DEFAULT_HISTORY_LINES);
+		chatBytes = Integer.getInteger("server.chatBytes", Room.DEFAULT_HISTORY_BYTES);
+		//Directory the world is saved in, empty to not save it
+		store = System.getProperty("server.store", "world");
+		checkpointInterval = Integer.getInteger("server.checkpointInterval", 30000);
+		//Bytes a segment of the chat log grows to before the next is started
+		chatSegment = Long.getLong("server.chatSegment", 16 * 1024 * 1024);
+		//Bytes of chat log kept; the oldest segments are deleted past it
+		chatRetain = Long.getLong("server.chatRetain", 64 * chatSegment);
+		//File every message from clients is recorded to, for Replay; empty to not record
+		record = System.getProperty("server.record", "");
+	}
+}
@@ -1,35 +1,75 @@
 package server;
 
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import shared.MessageWriter;
 import shared.Room;
 
 /**
  * ServerModel holds the model that the server uses as the master copy of the world
  * state.
  * 
+ * Players are kept in a concurrent map by id, so they can join and leave while
+ * other threads look through them. The model also indexes the players by the
+ * room they are in, so that sending something to the players near a room only
+ * looks at the rooms around it.
+ * 
+ * The world is sparse: a room is only made the first time it is touched, and
+ * kept in a LongMap by its coordinates. Rooms nobody has touched for a while
+ * are released to a compact form by releaseIdleRooms(), so a world of many
+ * millions of rooms costs only what is being used.
+ * 
  * @author Andy Katz
  *
  */
 public class ServerModel {
-	public final int WORLD_SIZE = 10;
+	public static final int DEFAULT_WORLD_SIZE = 10;
+	
+	public final int WORLD_SIZE;
 	public final int NUM_TYPES = 2;
 	public final int width = 640;
 	public final int height = 480;
 	
+	//How faithfully footsteps are sent, lowered by the Ticker when it falls behind
+	public static final int FIDELITY_FULL = 0;
+	public static final int FIDELITY_OWN_ROOM = 1;
+	public static final int FIDELITY_HALF_RATE = 2;
+	
+	
+	private LongMap<RoomSlot> world;
+	//Chat history each room keeps
+	private final int historyLines;
+	private final int historyBytes;
+	//Log that rooms get lines sent since the last checkpoint from, or null
+	private volatile ChatLog chatLog;
+	private ConcurrentHashMap<Integer, Player> players;
 	
-	private Room[][] world;
-	private ArrayList<Player> players;
+	private ConcurrentLinkedQueue<FootstepBatch> dirtyBatches;
+	private AtomicInteger dirtyCount;
+	private volatile int fidelity;
 	
 	public ServerModel(){
-		world = new Room[WORLD_SIZE][WORLD_SIZE];
-		players = new ArrayList<Player>();
-		
-		for (int i = 0; i < WORLD_SIZE; i++){
-			for (int j = 0; j < WORLD_SIZE; j++){
-				world[i][j] = new Room(width, height, i, j);
-			}
-		}
+		this(DEFAULT_WORLD_SIZE);
+	}
+	
+	public ServerModel(int worldSize){
+		this(worldSize, Room.DEFAULT_HISTORY_LINES, Room.DEFAULT_HISTORY_BYTES);
+	}
+	
+	public ServerModel(int worldSize, int lines, int bytes){
+		WORLD_SIZE = worldSize;
+		historyLines = lines;
+		historyBytes = bytes;
+		chatLog = null;
+		world = new LongMap<RoomSlot>();
+		players = new ConcurrentHashMap<Integer, Player>();
+		dirtyBatches = new ConcurrentLinkedQueue<FootstepBatch>();
+		dirtyCount = new AtomicInteger(0);
+		fidelity = FIDELITY_FULL;
 	}
 	
 	/**
@@ -40,38 +80,369 @@ public class ServerModel {
 	 * @return the room
 	 */
 	public Room getRoom(int x, int y){
+		//A slot dropped as idle just now is replaced by a new one
+		while(true){
+			RoomSlot slot = getSlot(x, y, true);
+			if(slot == null)
+				return null;
+			
+			Room room = slot.room();
+			if(room != null)
+				return room;
+		}
+	}
+	
+	/**
+	 * getSlot() is a private helper that finds the slot of a room.
+	 * 
+	 * @param x the x coordinate
+	 * @param y the y coordinate
+	 * @param create true to make the slot if the room has none
+	 * @return the slot, or null if there is no such room or it has no slot
+	 */
+	private RoomSlot getSlot(int x, int y, boolean create){
 		if(x < 0 || x >= WORLD_SIZE || y < 0 || y >= WORLD_SIZE)
 			return null;
 		
-		return world[x][y];
+		long key = (long) x * WORLD_SIZE + y;
+		RoomSlot slot = world.get(key);
+		if(slot == null && create){
+			slot = new RoomSlot(x, y, width, height, historyLines, historyBytes, chatLog);
+			RoomSlot existing = world.putIfAbsent(key, slot);
+			if(existing != null)
+				slot = existing;
+		}
+		return slot;
 	}
 	
 	/**
-	 * getPlayers() gets the players in the game.
+	 * releaseIdleRooms() releases the rooms that are empty and have not been
+	 * touched since the given time.
 	 * 
-	 * @return the players as an ArrayList
+	 * @param idleSince the time before which a room must have been last touched
+	 * @return the number of rooms still held whole
 	 */
-	public ArrayList<Player> getPlayers(){
-		return players;
+	public int releaseIdleRooms(long idleSince){
+		int loaded = 0;
+		for(RoomSlot slot : world.values()){
+			if(slot.release(idleSince))
+				world.remove((long) slot.getGridX() * WORLD_SIZE + slot.getGridY(), slot);
+			else if(slot.isLoaded())
+				loaded++;
+		}
+		return loaded;
 	}
 	
 	/**
-	 * addPlayer() adds a player to the list of players.
-	 * This function is synchronized as to not create race conditions.
+	 * setChatLog() sets the log that each room is brought up to date from as
+	 * it is made. Only rooms made after it is set are.
 	 * 
-	 * @param p the player to add
+	 * @param log the log
+	 */
+	public void setChatLog(ChatLog log){
+		chatLog = log;
+	}
+	
+	/**
+	 * restoreRoom() makes a released room from saved bytes, when the server
+	 * starts.
+	 * 
+	 * @param x the x coordinate
+	 * @param y the y coordinate
+	 * @param bytes the room as RoomSlot.checkpoint() gave it
+	 * @return false if there is no such room, or it was already made
+	 */
+	public boolean restoreRoom(int x, int y, ByteBuffer bytes){
+		RoomSlot slot = getSlot(x, y, true);
+		return slot != null && slot.relocate(null, bytes);
+	}
+	
+	/**
+	 * getSlots() gets the slots of the rooms that have one.
+	 * 
+	 * @return a copy of the slots
+	 */
+	Collection<RoomSlot> getSlots(){
+		return world.values();
+	}
+	
+	/**
+	 * getRoomCount() gets the number of rooms that have a slot, loaded or released.
+	 * 
+	 * @return the number of rooms
+	 */
+	public int getRoomCount(){
+		return world.size();
+	}
+	
+	/**
+	 * getSnapshot() gets the ROOM frame of the room with the given x,y coordinate,
+	 * encoded only if the room changed since it was last asked for.
+	 * 
+	 * @param x the x coordinate
+	 * @param y the y coordinate
+	 * @param window how many milliseconds old a footstep may be, 0 for all
+	 * @param writer a writer to encode with if needed
+	 * @return a read-only buffer of the frame, or null if there is no such room
+	 */
+	public ByteBuffer getSnapshot(int x, int y, int window, MessageWriter writer){
+		while(true){
+			RoomSlot slot = getSlot(x, y, true);
+			if(slot == null)
+				return null;
+			
+			ByteBuffer frame = slot.snapshot(window, writer);
+			if(frame != null)
+				return frame;
+		}
+	}
+	
+	/**
+	 * addFootstep() records a footstep to be sent to the players nearby on
+	 * the next tick.
+	 * 
+	 * @param gridX the x coordinate of the room
+	 * @param gridY the y coordinate of the room
+	 * @param x the x coordinate of the cell
+	 * @param y the y coordinate of the cell
+	 * @param time the time of the footstep
+	 * @param p the player that stepped
+	 */
+	public void addFootstep(int gridX, int gridY, int x, int y, long time, Player p){
+		FootstepBatch batch = null;
+		while(batch == null){
+			RoomSlot slot = getSlot(gridX, gridY, true);
+			if(slot == null)
+				return;
+			batch = slot.batch();
+		}
+		if(batch.add(x, y, time, p.getID(), p.getType())){
+			dirtyCount.incrementAndGet();
+			dirtyBatches.add(batch);
+		}
+	}
+	
+	/**
+	 * pollDirtyBatch() takes the next room that has footsteps waiting to be sent.
+	 * 
+	 * @return the batch of the room, or null if there is none
+	 */
+	public FootstepBatch pollDirtyBatch(){
+		FootstepBatch batch = dirtyBatches.poll();
+		if(batch != null)
+			dirtyCount.decrementAndGet();
+		return batch;
+	}
+	
+	/**
+	 * getDirtyRooms() gets the number of rooms with footsteps waiting to be sent.
+	 * 
+	 * @return the number of rooms
 	 */
-	public synchronized void addPlayer(Player p){
-		players.add(p);
+	public int getDirtyRooms(){
+		return dirtyCount.get();
 	}
 	
 	/**
-	 * removePlayer() removes a player from the list of players.
-	 * This function is synchronized as to not create race conditions.
+	 * getFidelity() gets how faithfully footsteps are sent, one of the
+	 * FIDELITY constants.
+	 * 
+	 * @return the fidelity
+	 */
+	public int getFidelity(){
+		return fidelity;
+	}
+	
+	/**
+	 * setFidelity() sets how faithfully footsteps are sent.
+	 * 
+	 * @param f one of the FIDELITY constants
+	 */
+	public void setFidelity(int f){
+		fidelity = f;
+	}
+	
+	/**
+	 * isInWindow() decides if the given room coordinates are in the player's window.
+	 * 
+	 * @param p the player to look at 
+	 * @param gridX the x coordinate of the room
+	 * @param gridY the y coordinate of the room
+	 * @return true if the room is in the player's window
+	 */
+	public boolean isInWindow(Player p, int gridX, int gridY) {
+		Player.Position position = p.getPosition();
+		int pGridX = getGridX(position.getX());
+		int pGridY = getGridY(position.getY());
+		
+		return (Math.abs(gridX - pGridX) <= 1 && Math.abs(gridY - pGridY) <= 1);
+	}
+	
+	/**
+	 * getGridX() gets the x coordinate of the room holding the given x coordinate.
+	 * 
+	 * @param x the x coordinate in the world
+	 * @return the x coordinate of the room
+	 */
+	public int getGridX(int x) {
+		return x / width;
+	}
+	
+	/**
+	 * getGridY() gets the y coordinate of the room holding the given y coordinate.
+	 * 
+	 * @param y the y coordinate in the world
+	 * @return the y coordinate of the room
+	 */
+	public int getGridY(int y) {
+		return y / height;
+	}
+	
+	/**
+	 * broadcast() sends a frame to every player whose window holds the given room.
+	 * Only the players in the room and the eight rooms around it are looked at.
+	 * 
+	 * @param gridX the x coordinate of the room
+	 * @param gridY the y coordinate of the room
+	 * @param frame the frame, each player is sent a duplicate
+	 * @param except a player not to send to, or null
+	 * @param droppable true if the frame may be dropped for players that are behind
+	 */
+	public void broadcast(int gridX, int gridY, ByteBuffer frame, Player except, boolean droppable){
+		broadcast(gridX, gridY, 1, frame, except, droppable);
+	}
+	
+	/**
+	 * broadcastFootsteps() sends a batch of footsteps to the players near its
+	 * room. Below full fidelity only the players in the room itself get it.
+	 * 
+	 * @param gridX the x coordinate of the room
+	 * @param gridY the y coordinate of the room
+	 * @param frame the frame, each player is sent a duplicate
+	 */
+	public void broadcastFootsteps(int gridX, int gridY, ByteBuffer frame){
+		broadcast(gridX, gridY, fidelity == FIDELITY_FULL ? 1 : 0, frame, null, true);
+	}
+	
+	/**
+	 * broadcast() is a private helper that sends a frame to every player within
+	 * the given number of rooms of a room.
+	 * 
+	 * @param gridX the x coordinate of the room
+	 * @param gridY the y coordinate of the room
+	 * @param radius how many rooms around it to send to
+	 * @param frame the frame, each player is sent a duplicate
+	 * @param except a player not to send to, or null
+	 * @param droppable true if the frame may be dropped for players that are behind
+	 */
+	private void broadcast(int gridX, int gridY, int radius, ByteBuffer frame, Player except, boolean droppable){
+		for(int i = gridX - radius; i <= gridX + radius; i++){
+			for(int j = gridY - radius; j <= gridY + radius; j++){
+				RoomSlot slot = getSlot(i, j, false);
+				if(slot == null)
+					continue;
+				
+				for(Player p : slot.getOccupants()){
+					if(p != except)
+						p.getConnection().send(frame.duplicate(), droppable);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * movePlayer() moves a player, moving it in the room index if it crossed into
+	 * another room.
+	 * 
+	 * @param p the player
+	 * @param x the new x coordinate in the world
+	 * @param y the new y coordinate in the world
+	 */
+	public void movePlayer(Player p, int x, int y){
+		synchronized(p){
+			int oldGridX = p.roomX;
+			int oldGridY = p.roomY;
+			p.setPosition(x, y);
+			
+			if(p.indexed && (getGridX(x) != oldGridX || getGridY(y) != oldGridY)){
+				unindex(p);
+				index(p);
+			}
+		}
+	}
+	
+	/**
+	 * index() is a private helper that adds a player to the index of the room it is in.
+	 * 
+	 * @param p the player
+	 */
+	private void index(Player p){
+		Player.Position position = p.getPosition();
+		p.roomX = getGridX(position.getX());
+		p.roomY = getGridY(position.getY());
+		p.indexed = true;
+		
+		//A slot dropped as idle just now is replaced by a new one
+		RoomSlot slot;
+		do{
+			slot = getSlot(p.roomX, p.roomY, true);
+		}while(slot != null && !slot.enter(p));
+	}
+	
+	/**
+	 * unindex() is a private helper that removes a player from the room index.
+	 * 
+	 * @param p the player
+	 */
+	private void unindex(Player p){
+		RoomSlot slot = getSlot(p.roomX, p.roomY, false);
+		if(slot != null)
+			slot.leave(p);
+		p.indexed = false;
+	}
+	
+	/**
+	 * getPlayers() gets the players in the game. The collection can be looked
+	 * through while players join and leave.
+	 * 
+	 * @return the players as a Collection
+	 */
+	public Collection<Player> getPlayers(){
+		return players.values();
+	}
+	
+	/**
+	 * getPlayer() gets the player with the given id.
+	 * 
+	 * @param id the id
+	 * @return the player, or null if there is none
+	 */
+	public Player getPlayer(int id){
+		return players.get(id);
+	}
+	
+	/**
+	 * addPlayer() adds a player to the players in the game.
 	 * 
 	 * @param p the player to add
 	 */
-	public synchronized void removePlayer(Player p){
-		players.remove(p);
+	public void addPlayer(Player p){
+		players.put(p.getID(), p);
+		synchronized(p){
+			index(p);
+		}
+	}
+	
+	/**
+	 * removePlayer() removes a player from the players in the game.
+	 * 
+	 * @param p the player to remove
+	 */
+	public void removePlayer(Player p){
+		players.remove(p.getID(), p);
+		synchronized(p){
+			if(p.indexed)
+				unindex(p);
+		}
 	}
 }
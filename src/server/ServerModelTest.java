@@ -0,0 +1,83 @@
+package server;
+import static org.junit.Assert.*;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+import shared.Room;
+
+
+public class ServerModelTest {
+
+	/**
+	 * Tests that players can join and leave while another thread looks through
+	 * them, and that every player gets its own id.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void JoinAndLeave() throws Exception{
+		final ServerModel model = new ServerModel();
+		final Player[] joined = new Player[2000];
+		Thread storm = new Thread(){
+			public void run(){
+				for(int i = 0; i < joined.length; i++){
+					joined[i] = new Player(i % 640, 0, 0, null);
+					model.addPlayer(joined[i]);
+					if(i % 2 == 1)
+						model.removePlayer(joined[i - 1]);
+				}
+			}
+		};
+		storm.start();
+		while(storm.isAlive()){
+			for(Player p : model.getPlayers()){
+				assertNotNull(p.getPosition());
+			}
+		}
+		storm.join();
+
+		Set<Integer> ids = new HashSet<Integer>();
+		for(Player p : joined){
+			assertTrue(ids.add(p.getID()));
+		}
+		assertEquals(joined.length / 2, model.getPlayers().size());
+		assertSame(joined[1], model.getPlayer(joined[1].getID()));
+		assertNull(model.getPlayer(joined[0].getID()));
+	}
+
+	/**
+	 * Tests that rooms of a huge world are only made when touched, that idle
+	 * rooms are released and come back with their footsteps and lines, and that
+	 * rooms nothing happened in are forgotten.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void ReleaseIdleRooms() throws Exception{
+		ServerModel model = new ServerModel(10000);
+		assertEquals(0, model.getRoomCount());
+		assertNull(model.getRoom(10000, 0));
+
+		Room far = model.getRoom(9999, 9999);
+		far.updateTime(3, 4, 1000);
+		far.addLine("hello");
+		model.getRoom(5000, 5000);
+		assertEquals(2, model.getRoomCount());
+
+		//Touched just now, so kept
+		assertEquals(2, model.releaseIdleRooms(System.currentTimeMillis() - 60000));
+
+		assertEquals(0, model.releaseIdleRooms(System.currentTimeMillis() + 1));
+		assertEquals(1, model.getRoomCount());
+
+		Room back = model.getRoom(9999, 9999);
+		assertNotSame(far, back);
+		assertEquals(1000, back.getTime(3, 4));
+		assertEquals("hello", back.getHistory().get(0));
+		assertTrue(back.getEpoch() != far.getEpoch());
+	}
+
+}
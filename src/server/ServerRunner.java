@@ -1,280 +1,400 @@
 package server;
 
-import java.io.BufferedReader;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.ObjectOutputStream;
-import java.io.OutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
 
 import shared.Game;
+import shared.MessageReader;
+import shared.MessageWriter;
+import shared.Protocol;
 import shared.Room;
+import shared.RoomCodec;
 
 /**
- * ServerRunner is the main class for the server.
- * 
+ * ServerRunner is the main class for the server. Each connected client has a
+ * ServerRunner that handles the messages it sends.
+ *
  * @author Andy Katz
  *
  */
-public class ServerRunner implements Runnable{
+public class ServerRunner implements ConnectionHandler{
+
+	static final int SERVER_PORT = ServerConfig.SERVER_PORT;
 
-	static final int SERVER_PORT = 2219;
-	
-	static int nextPort = SERVER_PORT + 1;
 	static ServerModel model;
-	
-	private int threadPort;
+	static ServerConfig config;
+	static ConnectionEngine engine;
+	static TimerWheel heartbeats;
+	static ChatLog chatLog;
+	static EventRecorder recorder;
+
+	private Player player;
+	//Session of the client in the recording
+	private int session;
+	private int version;
+	//How old a footstep the client still draws, in milliseconds
+	private int window;
+	private MessageWriter writer;
 
-	private ObjectOutputStream objOut;
+	private TokenBucket footsteps;
+	private TokenBucket messages;
+	private TokenBucket roomRequests;
 
 
 
 	public static void main(String[] args) {
-		model = new ServerModel();
-		
-		//Create server socket
-		ServerSocket server = null;
+		config = new ServerConfig();
+		model = new ServerModel(config.worldSize, config.chatLines, config.chatBytes);
+		if(config.store.length() > 0){
+			//Opened first, so rooms made from the checkpoint get their later lines
+			chatLog = new ChatLog(new File(config.store, "chat"), config.chatSegment, config.chatRetain);
+			try {
+				chatLog.open();
+				model.setChatLog(chatLog);
+				chatLog.start();
+			} catch (IOException e) {
+				System.err.println("Could not open the chat log: " + e.getMessage());
+				chatLog = null;
+			}
+
+			WorldStore store = new WorldStore(new File(config.store));
+			try {
+				store.load(model);
+			} catch (IOException e) {
+				System.err.println("Could not load the world: " + e.getMessage());
+			}
+			store.start(model, config.checkpointInterval);
+		}
+		if(config.record.length() > 0){
+			try {
+				recorder = new EventRecorder(new File(config.record));
+				recorder.start();
+			} catch (IOException e) {
+				System.err.println("Could not start recording: " + e.getMessage());
+			}
+		}
+		new Ticker(model, config).start(config.tickRate);
+		ServerStats.start(config.statsInterval);
+		heartbeats = new TimerWheel(250, 512);
+		heartbeats.start("heartbeats");
+		heartbeats.schedule(new TimerWheel.Task() {
+			public void expired(TimerWheel wheel) {
+				model.releaseIdleRooms(System.currentTimeMillis() - config.roomIdle);
+				wheel.schedule(this, config.roomIdle / 4);
+			}
+		}, config.roomIdle / 4);
+
+		if(!ServerConfig.MODE_NIO.equals(config.mode)){
+			runBlocking(config);
+			return;
+		}
+
+		//Create the engine and listen for new clients
 		try {
-			server = new ServerSocket(SERVER_PORT);
+			engine = new ConnectionEngine(config);
+			engine.listen(config.port, new ConnectionEngine.AcceptHandler() {
+				public void accepted(SocketChannel client, ServerSocketChannel server) throws IOException {
+					startSession(engine.open(client));
+				}
+			});
 		} catch (IOException e) {
 			System.err.println(e.getMessage());
 			e.printStackTrace();
 			return;
 		}
-		
-		//Loop on listening
-		//Spawn new thread on connection
-		while(true){
-			try {
-				Socket client = server.accept();
-				
-				System.out.println("Connection recieved");
-			
-				//Get and send port for new connection
-				int port = nextPort++;
-				DataOutputStream out = new DataOutputStream(client.getOutputStream());
-				out.writeBytes("" + port);
-			
-				client.close();
-			
-				//Start new thread to handle connection
-				Runnable r = new ServerRunner(port);
-				new Thread(r).start();
-				
-			}
-			catch (IOException e) {
-				System.err.println(e.getMessage());
-				e.printStackTrace();
-				continue;
-			}
-		}
-	}
-	
-	
-	public ServerRunner(int port) {
-		threadPort = port;
-	}
 
+		engine.run();
+	}
 
-	@Override
-	public void run() {
-		//Create server socket
-		ServerSocket server = null;
-		Socket client = null;
+	/**
+	 * runBlocking() is a private helper that runs the server with a thread per
+	 * connection instead of the ConnectionEngine.
+	 *
+	 * @param config the settings of the server
+	 */
+	private static void runBlocking(ServerConfig config){
+		BlockingEngine blocking = new BlockingEngine(config);
 		try {
-			server = new ServerSocket(threadPort);
-			client = server.accept();
+			blocking.listen(config.port, new BlockingEngine.AcceptHandler() {
+				public void accepted(BlockingConnection connection) throws IOException {
+					startSession(connection);
+				}
+			});
 		} catch (IOException e) {
 			System.err.println(e.getMessage());
 			e.printStackTrace();
 			return;
 		}
-		
-		System.out.println("Client connection established");
-		
-		Player player = generatePlayer(client);
-		model.addPlayer(player);
-		
-		int objectPort = nextPort++;
-		player.sendInitializationInfo(objectPort);
-		
-		try {
-			ServerSocket objectServer = new ServerSocket(objectPort);
-			Socket objectSender = objectServer.accept();
-			objOut = new ObjectOutputStream(objectSender.getOutputStream());
-		} catch (IOException e2) {
-			e2.printStackTrace();
+
+		blocking.run();
+	}
+
+
+	public ServerRunner(Player p) {
+		this(p, System.nanoTime());
+	}
+
+	/**
+	 * @param p the player of the client
+	 * @param now the time the client connected, as from System.nanoTime()
+	 */
+	ServerRunner(Player p, long now) {
+		player = p;
+		version = 0;
+		writer = new MessageWriter();
+
+		footsteps = new TokenBucket(config.footstepRate, config.footstepBurst, now);
+		messages = new TokenBucket(config.messageRate, config.messageBurst, now);
+		roomRequests = new TokenBucket(config.roomRate, config.roomBurst, now);
+	}
+
+	/**
+	 * startSession() is a private helper that creates the player for a new client
+	 * and starts its connection. The player joins the game once the client has
+	 * said HELLO. The whole session runs over this one connection.
+	 *
+	 * @param connection the connection of the new client
+	 */
+	private static void startSession(Connection connection) {
+		System.out.println("Connection recieved");
+
+		long now = System.nanoTime();
+		Player player = generatePlayer(connection);
+		ServerRunner runner = new ServerRunner(player, now);
+		if(recorder != null)
+			runner.session = recorder.connected(now);
+		connection.setHandler(runner);
+		connection.register();
+		new Heartbeat(connection, config).start(heartbeats);
+	}
+
+
+	@Override
+	public void handleMessage(Connection connection, int opcode, MessageReader message) throws IOException {
+		long now = System.nanoTime();
+		if(recorder != null)
+			recorder.message(session, now, opcode, message);
+		handleMessage(opcode, message, now, System.currentTimeMillis());
+	}
+
+	/**
+	 * handleMessage() handles a message from the client as if it arrived at the
+	 * given time. Replay calls it with the times in a recording.
+	 *
+	 * @param opcode the opcode of the message
+	 * @param message the reader, at the start of the payload
+	 * @param now the time the message arrived, as from System.nanoTime()
+	 * @param millis the time the message arrived, as from System.currentTimeMillis()
+	 * @throws IOException if the message is malformed
+	 */
+	void handleMessage(int opcode, MessageReader message, long now, long millis) throws IOException {
+		if(version == 0){
+			if(opcode != Protocol.HELLO)
+				throw new ProtocolException("Expected HELLO, got " + opcode);
+
+			hello(message.readVarInt(), message.readVarInt());
 		}
-		
-		String message = "";
-		BufferedReader in = null;
-		try {
-			in = new BufferedReader(new InputStreamReader(client.getInputStream()));
-		} catch (IOException e1) {
-			System.err.println(e1.getMessage());
-			e1.printStackTrace();
+		else if(!allow(opcode, now)){
+			//Refused before any of the payload is read
 			return;
 		}
-		while(true){
-			try {
-				message = in.readLine();
-				
-				if("REQUEST ROOM".equals(message)){
-					int gridX = Integer.parseInt(in.readLine());
-					int gridY = Integer.parseInt(in.readLine());
-					sendRoom(gridX, gridY, player.getStream());
-				}
-				else if("FOOTSTEP".equals(message)){
-					int gridX = Integer.parseInt(in.readLine());
-					int gridY = Integer.parseInt(in.readLine());
-					int x = Integer.parseInt(in.readLine());
-					int y = Integer.parseInt(in.readLine());
-					long time = Long.parseLong(in.readLine());
-					int id = player.getID();
-					int type = player.getType();
-					
-					model.getRoom(gridX, gridY).updateTime(x, y, time);
-					player.setX(gridX * Game.width + x * Game.TILE_SIZE);
-					player.setY(gridY * Game.width + y * Game.TILE_SIZE);
-					
-					for (Player p : model.getPlayers()){
-						if(p != player && isInWindow(p, gridX, gridY)){
-							sendFootstep(gridX, gridY, x, y, time, id, type, p.getStream());
-						}
-					}
-				}
-				else if("MESSAGE".equals(message)){
-					String line = in.readLine();
-					
-					int gridX = getGridX(player.getX());
-					int gridY = getGridY(player.getY());
-					model.getRoom(gridX, gridY).addLine(line);
-					
-					for (Player p : model.getPlayers()){
-						if(p != player && isInWindow(p, gridX, gridY)){
-							sendMessage(gridX, gridY, line, p.getStream());
-						}
-					}
-				}
-				
-				
-			} catch (IOException e) {				
-				model.removePlayer(player);
-				return;
-			}
+		else if(opcode == Protocol.REQUEST_ROOM){
+			int gridX = message.readVarInt();
+			int gridY = message.readVarInt();
+			long epoch = message.readVarLong();
+			long since = message.readVarLong();
+			sendRoom(gridX, gridY, epoch, since);
+		}
+		else if(opcode == Protocol.REQUEST_HISTORY){
+			int gridX = message.readVarInt();
+			int gridY = message.readVarInt();
+			long before = message.readVarLong();
+			int count = message.readVarInt();
+			sendHistory(gridX, gridY, before, count);
+		}
+		else if(opcode == Protocol.FOOTSTEP){
+			int gridX = message.readVarInt();
+			int gridY = message.readVarInt();
+			int x = message.readVarInt();
+			int y = message.readVarInt();
+			//A clock far off must not move the base of the whole room
+			long time = Room.clampTime(message.readVarLong(), millis);
+
+			//Checked before the player is moved, so it stays in the world
+			Room room = model.getRoom(gridX, gridY);
+			if(room == null || x < 0 || x >= room.getWidth() || y < 0 || y >= room.getHeight())
+				throw new ProtocolException("Footstep outside the world at " + gridX + "," + gridY + " " + x + "," + y);
+
+			model.movePlayer(player, gridX * Game.width + x * Game.TILE_SIZE,
+					gridY * Game.height + y * Game.TILE_SIZE);
+
+			//Sent to the players nearby on the next tick
+			if(room.updateTime(x, y, time))
+				model.addFootstep(gridX, gridY, x, y, time, player);
+		}
+		else if(opcode == Protocol.PONG){
+			//Reading it was enough to show the client is alive
+		}
+		else if(opcode == Protocol.MESSAGE){
+			String line = message.readString();
+
+			Player.Position position = player.getPosition();
+			int gridX = model.getGridX(position.getX());
+			int gridY = model.getGridY(position.getY());
+			long number = model.getRoom(gridX, gridY).addLine(line);
+			if(chatLog != null)
+				chatLog.append(gridX, gridY, number, line);
+
+			model.broadcast(gridX, gridY, messageFrame(gridX, gridY, line), player, false);
+		}
+		else{
+			throw new ProtocolException("Unknown opcode " + opcode);
 		}
-		
 	}
 
 	/**
-	 * isInWindow() is a private helper that decides if the given room coordinates
-	 * are in the player's window.
-	 * 
-	 * @param p the player to look at 
-	 * @param gridX the x coordinate of the room
-	 * @param gridY the y coordinate of the room
-	 * @return true if the room is in the player's window
+	 * hello() is a private helper that settles the protocol version with the client
+	 * and lets its player join the game.
+	 *
+	 * @param clientVersion the newest version the client speaks
+	 * @param clientWindow how old a footstep the client draws, 0 for all
+	 * @throws ProtocolException if the client is too old
 	 */
-	private boolean isInWindow(Player p, int gridX, int gridY) {
-		int pGridX = getGridX(p.getX());
-		int pGridY = getGridY(p.getY());
-		
-		return (Math.abs(gridX - pGridX) <= 1 && Math.abs(gridY - pGridY) <= 1);
-		
-	}
-
+	private void hello(int clientVersion, int clientWindow) throws ProtocolException {
+		if(clientVersion < Protocol.MIN_VERSION)
+			throw new ProtocolException("Unsupported protocol version " + clientVersion);
 
-	private int getGridY(int y) {
-		return y / model.height;
+		version = Math.min(clientVersion, Protocol.VERSION);
+		window = clientWindow;
+		model.addPlayer(player);
+		player.sendInitializationInfo(version);
 	}
 
+	@Override
+	public void disconnected(Connection connection) {
+		if(recorder != null)
+			recorder.disconnected(session, System.nanoTime());
+		model.removePlayer(player);
+	}
 
-	private int getGridX(int x) {
-		return x / model.width;
+	/**
+	 * allow() is a private helper that takes a token from the bucket of the
+	 * message type, counting the message if it is refused.
+	 *
+	 * @param opcode the opcode of the message
+	 * @param now the time the message arrived
+	 * @return false if the client is sending too many of this type
+	 */
+	private boolean allow(int opcode, long now){
+		if(opcode == Protocol.FOOTSTEP){
+			if(footsteps.tryTake(now))
+				return true;
+			ServerStats.limitedFootsteps.incrementAndGet();
+			return false;
+		}
+		else if(opcode == Protocol.MESSAGE){
+			if(messages.tryTake(now))
+				return true;
+			ServerStats.limitedMessages.incrementAndGet();
+			return false;
+		}
+		else if(opcode == Protocol.REQUEST_ROOM || opcode == Protocol.REQUEST_HISTORY){
+			if(roomRequests.tryTake(now))
+				return true;
+			ServerStats.limitedRoomRequests.incrementAndGet();
+			return false;
+		}
+		//PONG and the rest are never limited
+		return true;
 	}
-	
+
 	/**
-	 * sendMessage() is a private helper that sends a message to a client for updating
+	 * messageFrame() is a private helper that encodes a message for updating
 	 * room history.
-	 * 
+	 *
 	 * @param gridX the x coordinate of the room
 	 * @param gridY the y coordinate of the room
 	 * @param line the message
-	 * @param stream the stream to send on
-	 * @throws IOException 
+	 * @return the frame, to be sent to every client as a duplicate
 	 */
-	private void sendMessage(int gridX, int gridY, String line, OutputStream stream) throws IOException {
-		DataOutputStream out = new DataOutputStream(stream);
-		String message = "MESSAGE" + "\n" + gridX + "\n" + gridY + "\n" + line + "\n";
-		out.writeBytes(message);
+	private ByteBuffer messageFrame(int gridX, int gridY, String line) {
+		writer.begin(Protocol.MESSAGE_UPDATE)
+			.writeVarInt(gridX)
+			.writeVarInt(gridY)
+			.writeString(line);
+		return writer.toByteBuffer();
 	}
 
 	/**
-	 * sendFootstep() is a private helper that sends footstep information to the
-	 * given client.
-	 * 
+	 * sendRoom() is a private helper method that sends a room to the client.
+	 * If the client holds an older copy of the room it is sent only the changes.
+	 *
 	 * @param gridX the x coordinate of the room
 	 * @param gridY the y coordinate of the room
-	 * @param x the x coordinate of the location in the room
-	 * @param y the y coordinate of the location in the room
-	 * @param time the time of the new footstep information
-	 * @param id 
-	 * @param out the stream to send on
-	 * @throws IOException 
+	 * @param epoch the epoch of the client's copy
+	 * @param since the version of the client's copy, 0 for none
 	 */
-	private void sendFootstep(int gridX, int gridY, int x, int y, long time, int id, int type, OutputStream stream) throws IOException {
-		DataOutputStream out = new DataOutputStream(stream);
-		String message = "FOOTSTEP" + "\n" + gridX + "\n" + gridY + "\n" + x + "\n"
-				+ y + "\n" + time + "\n" + id + "\n" + type + "\n";
-		out.writeBytes(message);
-		out.flush();
+	private void sendRoom(int gridX, int gridY, long epoch, long since) {
+		Room room = model.getRoom(gridX, gridY);
+		if(room == null)
+			return;
+
+		writer.begin(Protocol.ROOM_DELTA)
+			.writeVarInt(gridX)
+			.writeVarInt(gridY);
+		if(RoomCodec.encodeDelta(room, epoch, since, writer))
+			player.getConnection().send(writer.toByteBuffer());
+		else
+			player.getConnection().send(model.getSnapshot(gridX, gridY, window, writer));
 	}
 
 	/**
-	 * sendRoom() is a private helper method that sends a room to a client.
-	 * 
+	 * sendHistory() is a private helper method that sends the client a page of
+	 * the chat lines of a room older than those it holds.
+	 *
 	 * @param gridX the x coordinate of the room
 	 * @param gridY the y coordinate of the room
-	 * @param stream the stream to send over
-	 * @throws IOException 
+	 * @param before the number of the oldest line the client holds
+	 * @param count the most lines to send
 	 */
-	private void sendRoom(int gridX, int gridY, OutputStream stream) throws IOException {
-		DataOutputStream out = new DataOutputStream(stream);
-		String message = "ROOM" + "\n";
-		out.writeBytes(message);
-		out.flush();
-		
-		//ObjectOutputStream obj = new ObjectOutputStream(stream);
+	private void sendHistory(int gridX, int gridY, long before, int count) {
 		Room room = model.getRoom(gridX, gridY);
-		objOut.writeObject(room);
-		objOut.flush();
+		if(room == null)
+			return;
+
+		writer.begin(Protocol.HISTORY)
+			.writeVarInt(gridX)
+			.writeVarInt(gridY);
+		//Lines the Room no longer keeps are read from the log
+		if(chatLog != null && before <= room.getFirstLine()){
+			List<String> lines = chatLog.read(gridX, gridY, before, Math.min(count, RoomCodec.MAX_PAGE_LINES));
+			RoomCodec.encodeHistory(room.getEpoch(), before - lines.size(), lines, writer);
+		}
+		else{
+			RoomCodec.encodeHistory(room, before, count, writer);
+		}
+		player.getConnection().send(writer.toByteBuffer());
 	}
 
 
 	/**
-	 * generatePlayer() is a private helper method to create a new player.
-	 * 
-	 * @param client the socket that the player is connected to
+	 * generatePlayer() creates the player for a new client.
+	 *
+	 * @param connection the connection that the player is connected to
 	 * @return the player
 	 */
-	private Player generatePlayer(Socket client){
+	static Player generatePlayer(Connection connection){
 		int gridX = 0;//(int)(model.WORLD_SIZE * Math.random());
 		int gridY = 0;//(int)(model.WORLD_SIZE * Math.random());
 		int x = model.width * gridX + model.width/2;
 		int y = model.height * gridY + model.height/2;
 		int type = (int)(model.NUM_TYPES * Math.random());
-		OutputStream out;
-		try {
-			out = client.getOutputStream();
-		} catch (IOException e) {
-			System.err.println(e.getMessage());
-			e.printStackTrace();
-			return null;
-		}
-		return new Player(x, y, type, out);
+		return new Player(x, y, type, connection);
 	}
 
 }
@@ -0,0 +1,98 @@
+package server;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ServerStats holds counters of what the server did to protect itself, so
+ * that it can be watched while it runs. The counters only ever go up; the
+ * gauges hold the latest reading.
+ *
+ * @author Andy Katz
+ *
+ */
+public class ServerStats {
+	//Footstep frames not queued because the client was behind
+	public static final AtomicLong droppedFootsteps = new AtomicLong();
+	//Clients disconnected because their queue filled up
+	public static final AtomicLong overflowEvictions = new AtomicLong();
+	//Clients disconnected because nothing could be written to them for too long
+	public static final AtomicLong stalledEvictions = new AtomicLong();
+	//Clients disconnected because they sent nothing, not even a PONG, for too long
+	public static final AtomicLong idleEvictions = new AtomicLong();
+	//Messages refused because the client sent too many of them
+	public static final AtomicLong limitedFootsteps = new AtomicLong();
+	public static final AtomicLong limitedMessages = new AtomicLong();
+	public static final AtomicLong limitedRoomRequests = new AtomicLong();
+	//ROOM frames sent from the cache and ROOM frames encoded
+	public static final AtomicLong snapshotHits = new AtomicLong();
+	public static final AtomicLong snapshotEncodes = new AtomicLong();
+	//Chat lines written to the ChatLog, the commits they were written in, and
+	//lines not logged because the log was too far behind
+	public static final AtomicLong loggedLines = new AtomicLong();
+	public static final AtomicLong logCommits = new AtomicLong();
+	public static final AtomicLong droppedLines = new AtomicLong();
+	//Events not recorded because the EventRecorder was too far behind
+	public static final AtomicLong droppedEvents = new AtomicLong();
+	//Times the Ticker lowered or raised the footstep fidelity
+	public static final AtomicLong fidelityChanges = new AtomicLong();
+
+	//Gauges set by the Ticker on every tick
+	public static final AtomicInteger fidelity = new AtomicInteger();
+	public static final AtomicLong tickLag = new AtomicLong();
+	public static final AtomicInteger waitingRooms = new AtomicInteger();
+
+	private ServerStats(){
+	}
+
+	/**
+	 * report() describes the counters in one line.
+	 *
+	 * @return the line
+	 */
+	public static String report(){
+		return "dropped footsteps " + droppedFootsteps.get()
+			+ ", overflow evictions " + overflowEvictions.get()
+			+ ", stalled evictions " + stalledEvictions.get()
+			+ ", idle evictions " + idleEvictions.get()
+			+ ", limited footsteps " + limitedFootsteps.get()
+			+ ", limited messages " + limitedMessages.get()
+			+ ", limited room requests " + limitedRoomRequests.get()
+			+ ", snapshot hits " + snapshotHits.get()
+			+ ", snapshot encodes " + snapshotEncodes.get()
+			+ ", logged lines " + loggedLines.get()
+			+ " (" + logCommits.get() + " commits, " + droppedLines.get() + " dropped)"
+			+ ", dropped events " + droppedEvents.get()
+			+ ", fidelity " + fidelity.get()
+			+ " (" + fidelityChanges.get() + " changes)"
+			+ ", tick lag " + tickLag.get() + "ms"
+			+ ", waiting rooms " + waitingRooms.get();
+	}
+
+	/**
+	 * start() prints the report on a thread of its own every so often.
+	 *
+	 * @param interval the seconds between reports, 0 for none
+	 */
+	public static void start(int interval){
+		if(interval <= 0)
+			return;
+
+		ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "stats");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		timer.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				System.out.println(report());
+			}
+		}, interval, interval, TimeUnit.SECONDS);
+	}
+}
@@ -0,0 +1,75 @@
+package server;
+
+import java.nio.ByteBuffer;
+
+import shared.MessageWriter;
+import shared.Protocol;
+import shared.Room;
+import shared.RoomCodec;
+
+/**
+ * SnapshotCache keeps the encoded ROOM frame of one Room, so that the many
+ * clients that ask for a Room that has not changed are all sent the same bytes
+ * instead of each having it encoded again.
+ *
+ * The frame is kept with the version of the Room it was encoded at. Every
+ * footstep and chat line raises the version, so a frame is only used while
+ * the Room is still at that version, and nothing has to clear it.
+ *
+ * Frames are encoded for a visibility window, leaving out older footsteps.
+ * A frame stays good for the same window while the version is unchanged,
+ * since footsteps only leave a window as time passes and never enter it.
+ *
+ * @author Andy Katz
+ *
+ */
+public class SnapshotCache {
+
+	private final Room room;
+	private volatile Entry entry;
+
+	public SnapshotCache(Room r){
+		room = r;
+		entry = null;
+	}
+
+	/**
+	 * get() gets the ROOM frame of the Room as it is now, encoding it only if
+	 * the Room changed since it was last encoded.
+	 *
+	 * @param window how many milliseconds old a footstep may be, 0 for all
+	 * @param writer a writer to encode with if needed
+	 * @return a read-only buffer of the frame, for this caller alone
+	 */
+	public ByteBuffer get(int window, MessageWriter writer){
+		long version = room.getVersion();
+		Entry cached = entry;
+		if(cached != null && cached.version == version && cached.window == window){
+			ServerStats.snapshotHits.incrementAndGet();
+			return cached.frame.duplicate();
+		}
+
+		//Two threads may both encode a changed Room; either result is good
+		writer.begin(Protocol.ROOM);
+		RoomCodec.encode(room, window > 0 ? System.currentTimeMillis() - window : 0, writer);
+		ByteBuffer frame = writer.toByteBuffer().asReadOnlyBuffer();
+		entry = new Entry(version, window, frame);
+		ServerStats.snapshotEncodes.incrementAndGet();
+		return frame.duplicate();
+	}
+
+	/**
+	 * Entry is an encoded frame and the version and window it was encoded for.
+	 */
+	private static class Entry {
+		final long version;
+		final int window;
+		final ByteBuffer frame;
+
+		Entry(long v, int w, ByteBuffer f){
+			version = v;
+			window = w;
+			frame = f;
+		}
+	}
+}
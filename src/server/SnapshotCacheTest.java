@@ -0,0 +1,61 @@
+package server;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import shared.MessageReader;
+import shared.MessageWriter;
+import shared.Protocol;
+import shared.Room;
+import shared.RoomCodec;
+
+
+public class SnapshotCacheTest {
+
+	/**
+	 * Tests that the frame is reused while the Room is unchanged, and encoded
+	 * again once a footstep or a chat line changes it.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void Reuse() throws Exception{
+		Room room = new Room(640, 480, 1, 2);
+		SnapshotCache cache = new SnapshotCache(room);
+		MessageWriter writer = new MessageWriter();
+
+		ByteBuffer first = cache.get(0, writer);
+		ByteBuffer second = cache.get(0, writer);
+		assertTrue(first.isReadOnly());
+		assertEquals(first, second);
+
+		//Each caller has its own position
+		first.position(first.limit());
+		assertTrue(second.hasRemaining());
+
+		room.updateTime(3, 4, 1000);
+		assertEquals(1000, decode(cache.get(0, writer)).getTime(3, 4));
+
+		room.addLine("hello");
+		assertEquals("hello", decode(cache.get(0, writer)).getHistory().get(0));
+	}
+
+	/**
+	 * decode() is a private helper that reads a Room back from a ROOM frame.
+	 *
+	 * @param frame the frame
+	 * @return the Room
+	 * @throws Exception
+	 */
+	private static Room decode(ByteBuffer frame) throws Exception{
+		byte[] bytes = new byte[frame.remaining()];
+		frame.get(bytes);
+		MessageReader reader = new MessageReader();
+		assertEquals(Protocol.ROOM, reader.readFrame(new ByteArrayInputStream(bytes), Protocol.MAX_SERVER_FRAME));
+		return RoomCodec.decode(reader);
+	}
+
+}
@@ -0,0 +1,153 @@
+package server;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import shared.MessageWriter;
+
+/**
+ * Ticker sends out the footsteps collected by the ServerModel at a fixed rate.
+ * On every tick each room that had footsteps is encoded once, and the frame is
+ * queued for every player whose window holds the room, so a player gets at
+ * most one batch per room in its window per tick however crowded it is.
+ *
+ * When ticks start late or too many rooms are waiting, the Ticker lowers the
+ * fidelity of the ServerModel a step at a time: first footsteps only go to
+ * the players in the room itself, then they go out every other tick. After a
+ * change the fidelity is left alone for a second, and it is raised a step
+ * again only once the load has then stayed low for every tick of a second.
+ *
+ * @author Andy Katz
+ *
+ */
+public class Ticker implements Runnable {
+
+	private final ServerModel model;
+	private final MessageWriter writer;
+
+	//Lag in nanoseconds and waiting rooms past which the fidelity is lowered
+	private final long degradeLag;
+	private final int degradeRooms;
+
+	private long period;
+	private long nextTick;
+	private long ticks;
+	//Ticks until the fidelity may change again
+	private int settle;
+	//Ticks in a row since the settle with the load low
+	private int relaxedTicks;
+
+	public Ticker(ServerModel m, ServerConfig config){
+		model = m;
+		writer = new MessageWriter();
+		degradeLag = TimeUnit.MILLISECONDS.toNanos(config.degradeLag);
+		degradeRooms = config.degradeRooms;
+		period = 0;
+		nextTick = 0;
+		ticks = 0;
+		settle = 0;
+		relaxedTicks = 0;
+	}
+
+	/**
+	 * start() starts ticking on a thread of its own.
+	 *
+	 * @param tickRate the number of ticks per second
+	 */
+	public void start(int tickRate){
+		ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ticker");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		setRate(tickRate);
+		timer.scheduleAtFixedRate(this, period, period, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * setRate() sets how often ticks are meant to run, for telling how late one is.
+	 *
+	 * @param tickRate the number of ticks per second
+	 */
+	void setRate(int tickRate){
+		period = 1000000000L / Math.max(1, tickRate);
+	}
+
+	/**
+	 * run() runs one tick.
+	 */
+	@Override
+	public void run() {
+		tick(System.nanoTime());
+	}
+
+	/**
+	 * tick() runs one tick at the given time.
+	 *
+	 * @param now the time in nanoseconds, as from System.nanoTime()
+	 */
+	void tick(long now) {
+		try {
+			adjustFidelity(now);
+			ticks++;
+			//Skipped rooms keep collecting, so the next tick sends their newest steps
+			if(model.getFidelity() == ServerModel.FIDELITY_HALF_RATE && ticks % 2 == 1)
+				return;
+
+			FootstepBatch batch;
+			while((batch = model.pollDirtyBatch()) != null){
+				if(!batch.take(writer))
+					continue;
+
+				model.broadcastFootsteps(batch.getGridX(), batch.getGridY(), writer.toByteBuffer());
+			}
+		} catch (RuntimeException e) {
+			//An exception would cancel every later tick
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * adjustFidelity() is a private helper that measures how late this tick is
+	 * and how many rooms are waiting, and lowers or raises the fidelity of the
+	 * ServerModel.
+	 *
+	 * @param now the time of the tick in nanoseconds
+	 */
+	private void adjustFidelity(long now){
+		long lag = nextTick == 0 ? 0 : Math.max(0, now - nextTick);
+		nextTick = (nextTick == 0 ? now : nextTick) + period;
+		int rooms = model.getDirtyRooms();
+
+		ServerStats.tickLag.set(TimeUnit.NANOSECONDS.toMillis(lag));
+		ServerStats.waitingRooms.set(rooms);
+
+		if(settle > 0){
+			settle--;
+			return;
+		}
+
+		int fidelity = model.getFidelity();
+		int second = period > 0 ? (int) (1000000000L / period) : 0;
+		boolean overloaded = (degradeLag > 0 && lag > degradeLag) || (degradeRooms > 0 && rooms > degradeRooms);
+		boolean relaxed = (degradeLag <= 0 || lag < degradeLag / 4) && (degradeRooms <= 0 || rooms < degradeRooms / 2);
+		relaxedTicks = relaxed ? relaxedTicks + 1 : 0;
+		if(overloaded && fidelity < ServerModel.FIDELITY_HALF_RATE)
+			fidelity++;
+		else if(relaxedTicks >= Math.max(1, second) && fidelity > ServerModel.FIDELITY_FULL)
+			fidelity--;
+		else
+			return;
+
+		model.setFidelity(fidelity);
+		ServerStats.fidelity.set(fidelity);
+		ServerStats.fidelityChanges.incrementAndGet();
+		System.out.println("Footstep fidelity now " + fidelity);
+		settle = second;
+		relaxedTicks = 0;
+	}
+}
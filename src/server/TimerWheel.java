@@ -0,0 +1,184 @@
+package server;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TimerWheel runs tasks after a delay, for very many tasks at once. Time is cut
+ * into ticks, and the wheel has a slot for each tick of one turn; a task goes
+ * in the slot of the tick it is due, with the number of whole turns still to
+ * wait. Scheduling and cancelling take constant time, and every tick only
+ * looks at one slot, at the cost of the tasks running up to a tick late.
+ *
+ * Any thread may schedule a task; the tasks run on the thread of the wheel.
+ *
+ * @author Andy Katz
+ *
+ */
+public class TimerWheel implements Runnable {
+
+	/**
+	 * Task is something to run when its time comes.
+	 */
+	public interface Task {
+		/**
+		 * expired() runs the task.
+		 *
+		 * @param wheel the wheel it ran on, for scheduling it again
+		 */
+		public void expired(TimerWheel wheel);
+	}
+
+	/**
+	 * Timeout is a scheduled task, which can be cancelled.
+	 */
+	public static class Timeout {
+		private final Task task;
+		private final long deadline;
+		private long rounds;
+		private volatile boolean cancelled;
+		private Timeout next;
+
+		private Timeout(Task t, long d){
+			task = t;
+			deadline = d;
+		}
+
+		/**
+		 * cancel() keeps the task from running, if it has not yet.
+		 */
+		public void cancel(){
+			cancelled = true;
+		}
+	}
+
+	private final long tickMillis;
+	private final Timeout[] slots;
+	private final int mask;
+	private final ConcurrentLinkedQueue<Timeout> pending;
+	private final long start;
+	private long tick;
+
+	/**
+	 * @param tickMillis the length of a tick in milliseconds
+	 * @param slotCount the number of slots, rounded up to a power of two
+	 */
+	public TimerWheel(long tickMillis, int slotCount){
+		this.tickMillis = Math.max(1, tickMillis);
+		int size = 1;
+		while(size < slotCount)
+			size <<= 1;
+		slots = new Timeout[size];
+		mask = size - 1;
+		pending = new ConcurrentLinkedQueue<Timeout>();
+		start = System.currentTimeMillis();
+		tick = 0;
+	}
+
+	/**
+	 * start() starts turning the wheel on a thread of its own.
+	 *
+	 * @param name the name of the thread
+	 */
+	public void start(final String name){
+		ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		timer.scheduleAtFixedRate(this, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * schedule() runs a task once the delay has passed.
+	 *
+	 * @param task the task
+	 * @param delay the delay in milliseconds
+	 * @return the timeout, for cancelling
+	 */
+	public Timeout schedule(Task task, long delay){
+		Timeout timeout = new Timeout(task, System.currentTimeMillis() + Math.max(0, delay));
+		pending.add(timeout);
+		return timeout;
+	}
+
+	/**
+	 * run() turns the wheel up to the current time.
+	 */
+	@Override
+	public void run() {
+		advance(System.currentTimeMillis());
+	}
+
+	/**
+	 * advance() runs every tick up to the given time.
+	 *
+	 * @param now the time in milliseconds
+	 */
+	void advance(long now){
+		long target = (now - start) / tickMillis;
+		while(tick <= target){
+			place(target);
+			expire(slots[(int) (tick & mask)], (int) (tick & mask));
+			tick++;
+		}
+	}
+
+	/**
+	 * place() is a private helper that puts the newly scheduled tasks in their slots.
+	 *
+	 * @param current the tick the wheel is catching up to
+	 */
+	private void place(long current){
+		Timeout timeout;
+		while((timeout = pending.poll()) != null){
+			if(timeout.cancelled)
+				continue;
+
+			//Tasks already due go in the slot about to be run
+			long due = Math.max(tick, (timeout.deadline - start + tickMillis - 1) / tickMillis);
+			timeout.rounds = (due - tick) / slots.length;
+			int slot = (int) (due & mask);
+			timeout.next = slots[slot];
+			slots[slot] = timeout;
+		}
+	}
+
+	/**
+	 * expire() is a private helper that runs the tasks in a slot that are due
+	 * this turn and keeps the rest.
+	 *
+	 * @param head the first task in the slot
+	 * @param slot the slot
+	 */
+	private void expire(Timeout head, int slot){
+		Timeout kept = null;
+		Timeout timeout = head;
+		while(timeout != null){
+			Timeout next = timeout.next;
+			if(timeout.cancelled){
+				//Dropped
+			}
+			else if(timeout.rounds > 0){
+				timeout.rounds--;
+				timeout.next = kept;
+				kept = timeout;
+			}
+			else{
+				try {
+					timeout.task.expired(this);
+				} catch (RuntimeException e) {
+					//A failing task should not stop the wheel
+					e.printStackTrace();
+				}
+			}
+			timeout = next;
+		}
+		slots[slot] = kept;
+	}
+}
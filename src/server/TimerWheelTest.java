@@ -0,0 +1,57 @@
+package server;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+
+public class TimerWheelTest {
+
+	/**
+	 * Tests that tasks run once their delay has passed, including delays
+	 * longer than a turn of the wheel, and that cancelled tasks do not run.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void Expires() throws Exception{
+		final ArrayList<String> ran = new ArrayList<String>();
+		TimerWheel wheel = new TimerWheel(10, 8);
+		long now = System.currentTimeMillis();
+
+		wheel.schedule(task(ran, "soon"), 30);
+		wheel.schedule(task(ran, "late"), 500);
+		wheel.schedule(task(ran, "cancelled"), 30).cancel();
+
+		wheel.advance(now);
+		assertTrue(ran.isEmpty());
+
+		wheel.advance(now + 60);
+		assertEquals(1, ran.size());
+		assertEquals("soon", ran.get(0));
+
+		wheel.advance(now + 400);
+		assertEquals(1, ran.size());
+
+		wheel.advance(now + 520);
+		assertEquals(2, ran.size());
+		assertEquals("late", ran.get(1));
+	}
+
+	/**
+	 * task() is a private helper that makes a task that records its name.
+	 *
+	 * @param ran the names of the tasks that ran
+	 * @param name the name
+	 * @return the task
+	 */
+	private static TimerWheel.Task task(final ArrayList<String> ran, final String name){
+		return new TimerWheel.Task() {
+			public void expired(TimerWheel wheel) {
+				ran.add(name);
+			}
+		};
+	}
+
+}
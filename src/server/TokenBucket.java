@@ -0,0 +1,67 @@
+package server;
+
+/**
+ * TokenBucket limits how often something may happen. It holds up to a burst
+ * of tokens and refills at a steady rate; each event takes one token, and an
+ * event that finds the bucket empty is refused.
+ *
+ * A TokenBucket is used by one thread only.
+ *
+ * @author Andy Katz
+ *
+ */
+public class TokenBucket {
+
+	private final double perNano;
+	private final double burst;
+	private double tokens;
+	private long last;
+
+	/**
+	 * @param perSecond the tokens added per second, 0 or less for no limit
+	 * @param burst the most tokens the bucket holds
+	 */
+	public TokenBucket(int perSecond, int burst){
+		this(perSecond, burst, System.nanoTime());
+	}
+
+	/**
+	 * @param perSecond the tokens added per second, 0 or less for no limit
+	 * @param burst the most tokens the bucket holds
+	 * @param now the time the bucket starts full, as from System.nanoTime()
+	 */
+	public TokenBucket(int perSecond, int burst, long now){
+		perNano = perSecond / 1e9;
+		this.burst = Math.max(1, burst);
+		tokens = this.burst;
+		last = now;
+	}
+
+	/**
+	 * tryTake() takes a token if there is one.
+	 *
+	 * @return false if the event should be refused
+	 */
+	public boolean tryTake(){
+		return tryTake(System.nanoTime());
+	}
+
+	/**
+	 * tryTake() takes a token if there is one at the given time.
+	 *
+	 * @param now the time in nanoseconds, as from System.nanoTime()
+	 * @return false if the event should be refused
+	 */
+	public boolean tryTake(long now){
+		if(perNano <= 0)
+			return true;
+
+		tokens = Math.min(burst, tokens + (now - last) * perNano);
+		last = now;
+		if(tokens < 1)
+			return false;
+
+		tokens -= 1;
+		return true;
+	}
+}
@@ -0,0 +1,48 @@
+package server;
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+
+public class TokenBucketTest {
+
+	/**
+	 * Tests that a bucket allows its burst, then refills at its rate.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void Refills() throws Exception{
+		TokenBucket bucket = new TokenBucket(10, 3);
+		long now = System.nanoTime();
+		assertTrue(bucket.tryTake(now));
+		assertTrue(bucket.tryTake(now));
+		assertTrue(bucket.tryTake(now));
+		assertFalse(bucket.tryTake(now));
+
+		//A tenth of a second brings one token
+		assertTrue(bucket.tryTake(now + 100000000L));
+		assertFalse(bucket.tryTake(now + 100000000L));
+
+		//A long wait never brings more than the burst
+		now += 10000000000L;
+		for(int i = 0; i < 3; i++){
+			assertTrue(bucket.tryTake(now));
+		}
+		assertFalse(bucket.tryTake(now));
+	}
+
+	/**
+	 * Tests that a bucket without a rate never refuses.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void Unlimited() throws Exception{
+		TokenBucket bucket = new TokenBucket(0, 1);
+		for(int i = 0; i < 100; i++){
+			assertTrue(bucket.tryTake(0));
+		}
+	}
+
+}
@@ -0,0 +1,295 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * WorldStore saves the rooms of the world to a memory-mapped file every so
+ * often and when the server stops, so that a restarted server picks up where
+ * it stopped. Rooms are saved as the bytes a released RoomSlot keeps, so there
+ * is no second way of encoding a Room.
+ *
+ * A checkpoint is a header, then for every room its grid coordinates, its
+ * length and its bytes. The header holds a magic number, the format, the
+ * generation of the checkpoint, the number of rooms, the length and CRC32 of
+ * the rooms, and the CRC32 of the header before it.
+ *
+ * Checkpoints go to two files in turn, so a crash while one is written leaves
+ * the other whole. The header is cleared before the rooms are written and
+ * written only once they are on disk, and a file whose header or rooms do not
+ * match their checksums is ignored when the server starts.
+ *
+ * Starting from a checkpoint only maps the file and makes a released slot for
+ * each room, pointing into the mapping; a room is decoded the first time it is
+ * touched. Once a checkpoint is written, rooms that are still released are
+ * moved into its mapping, so the older file can be written over safely and
+ * released rooms are not held on the heap.
+ *
+ * @author Andy Katz
+ *
+ */
+public class WorldStore {
+	private static final int MAGIC = 0x574F524C;
+	private static final int FORMAT = 1;
+	private static final int HEADER = 36;
+	private static final int ENTRY = 12;
+
+	private final File directory;
+	private final File[] files;
+	//File holding the newest good checkpoint, -1 for none
+	private int current;
+	private long generation;
+
+	public WorldStore(File dir){
+		directory = dir;
+		files = new File[] { new File(dir, "world.0"), new File(dir, "world.1") };
+		current = -1;
+		generation = 0;
+	}
+
+	/**
+	 * start() saves the world on a thread of its own every so often, and once
+	 * more when the server stops.
+	 *
+	 * @param model the world
+	 * @param interval milliseconds between checkpoints
+	 */
+	public void start(final ServerModel model, int interval){
+		ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "checkpoints");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		Runnable save = new Runnable() {
+			public void run() {
+				try {
+					checkpoint(model);
+				} catch (IOException e) {
+					System.err.println("Checkpoint failed: " + e.getMessage());
+				}
+			}
+		};
+		timer.scheduleWithFixedDelay(save, interval, interval, TimeUnit.MILLISECONDS);
+		Runtime.getRuntime().addShutdownHook(new Thread(save, "final checkpoint"));
+	}
+
+	/**
+	 * load() makes the rooms of the newest good checkpoint in the world.
+	 *
+	 * @param model the world, with no rooms yet
+	 * @return the number of rooms made
+	 * @throws IOException if a checkpoint cannot be read
+	 */
+	public synchronized int load(ServerModel model) throws IOException{
+		long start = System.currentTimeMillis();
+		MappedByteBuffer best = null;
+		for(int i = 0; i < files.length; i++){
+			MappedByteBuffer map = open(files[i]);
+			if(map == null)
+				continue;
+
+			long gen = map.getLong(8);
+			if(best == null || gen > generation){
+				best = map;
+				generation = gen;
+				current = i;
+			}
+		}
+		if(best == null)
+			return 0;
+
+		int rooms = best.getInt(16);
+		int restored = 0;
+		int position = HEADER;
+		for(int i = 0; i < rooms; i++){
+			int gridX = best.getInt(position);
+			int gridY = best.getInt(position + 4);
+			int length = best.getInt(position + 8);
+			position += ENTRY;
+			if(model.restoreRoom(gridX, gridY, slice(best, position, length)))
+				restored++;
+			position += length;
+		}
+
+		System.out.println("Loaded " + restored + " rooms from " + files[current]
+				+ " in " + (System.currentTimeMillis() - start) + "ms");
+		return restored;
+	}
+
+	/**
+	 * checkpoint() saves every room of the world that anything happened in.
+	 *
+	 * @param model the world
+	 * @return the number of rooms saved
+	 * @throws IOException if the checkpoint cannot be written
+	 */
+	public synchronized int checkpoint(ServerModel model) throws IOException{
+		long start = System.currentTimeMillis();
+		List<RoomSlot> slots = new ArrayList<RoomSlot>();
+		List<ByteBuffer> saved = new ArrayList<ByteBuffer>();
+		long length = 0;
+		for(RoomSlot slot : model.getSlots()){
+			ByteBuffer bytes = slot.checkpoint();
+			if(bytes == null)
+				continue;
+
+			slots.add(slot);
+			saved.add(bytes);
+			length += ENTRY + bytes.remaining();
+		}
+		if(HEADER + length > Integer.MAX_VALUE)
+			throw new IOException("World too large for one checkpoint: " + length + " bytes");
+
+		int target = current == 0 ? 1 : 0;
+		directory.mkdirs();
+		RandomAccessFile file = new RandomAccessFile(files[target], "rw");
+		MappedByteBuffer map;
+		try {
+			map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER + length);
+		} finally {
+			file.close();
+		}
+
+		//A crash from here on leaves a header that does not check out
+		map.putInt(0, 0);
+		map.force();
+
+		CRC32 crc = new CRC32();
+		byte[] bytes = new byte[ENTRY];
+		ByteBuffer entry = ByteBuffer.wrap(bytes);
+		map.position(HEADER);
+		for(int i = 0; i < slots.size(); i++){
+			ByteBuffer room = saved.get(i);
+			entry.clear();
+			entry.putInt(slots.get(i).getGridX())
+				.putInt(slots.get(i).getGridY())
+				.putInt(room.remaining());
+			crc.update(bytes, 0, ENTRY);
+			map.put(bytes, 0, ENTRY);
+
+			byte[] copy = new byte[room.remaining()];
+			room.duplicate().get(copy);
+			crc.update(copy, 0, copy.length);
+			map.put(copy);
+		}
+		map.force();
+
+		generation++;
+		byte[] header = new byte[HEADER];
+		ByteBuffer.wrap(header)
+			.putInt(MAGIC)
+			.putInt(FORMAT)
+			.putLong(generation)
+			.putInt(slots.size())
+			.putLong(length)
+			.putInt((int) crc.getValue())
+			.putInt(checksum(header, HEADER - 4));
+		map.position(0);
+		map.put(header);
+		map.force();
+		current = target;
+
+		//Nothing reads the older file once the released rooms are moved here
+		int position = HEADER;
+		for(int i = 0; i < slots.size(); i++){
+			int size = saved.get(i).remaining();
+			slots.get(i).relocate(saved.get(i), slice(map, position + ENTRY, size));
+			position += ENTRY + size;
+		}
+
+		System.out.println("Saved " + slots.size() + " rooms to " + files[target]
+				+ " in " + (System.currentTimeMillis() - start) + "ms");
+		return slots.size();
+	}
+
+	/**
+	 * open() is a private helper that maps a checkpoint and checks it.
+	 *
+	 * @param f the file
+	 * @return the mapping, or null if the file holds no good checkpoint
+	 * @throws IOException if the file cannot be read
+	 */
+	private static MappedByteBuffer open(File f) throws IOException{
+		if(!f.isFile() || f.length() < HEADER)
+			return null;
+
+		RandomAccessFile file = new RandomAccessFile(f, "r");
+		MappedByteBuffer map;
+		try {
+			map = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, Math.min(f.length(), Integer.MAX_VALUE));
+		} finally {
+			file.close();
+		}
+
+		byte[] header = new byte[HEADER];
+		map.get(header);
+		ByteBuffer fields = ByteBuffer.wrap(header);
+		if(fields.getInt(0) != MAGIC || fields.getInt(4) != FORMAT
+				|| fields.getInt(HEADER - 4) != checksum(header, HEADER - 4)){
+			System.out.println("Ignoring " + f + ": no whole checkpoint header");
+			return null;
+		}
+
+		long length = fields.getLong(20);
+		if(length < 0 || HEADER + length > map.capacity()){
+			System.out.println("Ignoring " + f + ": cut short");
+			return null;
+		}
+
+		CRC32 crc = new CRC32();
+		byte[] chunk = new byte[64 * 1024];
+		map.position(HEADER);
+		for(long left = length; left > 0; ){
+			int n = (int) Math.min(chunk.length, left);
+			map.get(chunk, 0, n);
+			crc.update(chunk, 0, n);
+			left -= n;
+		}
+		if((int) crc.getValue() != fields.getInt(28)){
+			System.out.println("Ignoring " + f + ": torn checkpoint");
+			return null;
+		}
+		return map;
+	}
+
+	/**
+	 * slice() is a private helper that gets a read-only view of part of a mapping.
+	 *
+	 * @param map the mapping
+	 * @param position where the part starts
+	 * @param length the length of the part
+	 * @return the view
+	 */
+	private static ByteBuffer slice(ByteBuffer map, int position, int length){
+		ByteBuffer view = map.duplicate();
+		view.limit(position + length);
+		view.position(position);
+		return view.slice().asReadOnlyBuffer();
+	}
+
+	/**
+	 * checksum() is a private helper that gets the CRC32 of the start of an array.
+	 *
+	 * @param bytes the array
+	 * @param length the number of bytes to check
+	 * @return the CRC32
+	 */
+	private static int checksum(byte[] bytes, int length){
+		CRC32 crc = new CRC32();
+		crc.update(bytes, 0, length);
+		return (int) crc.getValue();
+	}
+}
@@ -0,0 +1,57 @@
+package server;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import org.junit.Test;
+
+import shared.Room;
+
+
+public class WorldStoreTest {
+
+	/**
+	 * Tests that a restarted world gets back its rooms from the newest checkpoint,
+	 * and falls back to the one before when the newest was torn.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void Restart() throws Exception{
+		File dir = new File(System.getProperty("java.io.tmpdir"), "worldstore" + System.nanoTime());
+		ServerModel model = new ServerModel(100);
+		WorldStore store = new WorldStore(dir);
+		Room room = model.getRoom(42, 7);
+		room.updateTime(3, 4, 1365000000000L);
+		room.addLine("andy: hi");
+		model.getRoom(1, 1);
+		assertEquals(1, store.checkpoint(model));
+
+		//Released rooms are saved from their bytes
+		assertEquals(0, model.releaseIdleRooms(System.currentTimeMillis() + 1));
+		model.getRoom(5, 5).addLine("drew: hello");
+		assertEquals(2, store.checkpoint(model));
+
+		ServerModel restarted = new ServerModel(100);
+		assertEquals(2, new WorldStore(dir).load(restarted));
+		assertEquals(1365000000000L, restarted.getRoom(42, 7).getTime(3, 4));
+		assertEquals("andy: hi", restarted.getRoom(42, 7).getHistory().get(0));
+		assertEquals("drew: hello", restarted.getRoom(5, 5).getHistory().get(0));
+
+		RandomAccessFile torn = new RandomAccessFile(new File(dir, "world.1"), "rw");
+		torn.seek(torn.length() - 3);
+		torn.write(new byte[] { 1, 2, 3 });
+		torn.close();
+
+		restarted = new ServerModel(100);
+		assertEquals(1, new WorldStore(dir).load(restarted));
+		assertEquals(1365000000000L, restarted.getRoom(42, 7).getTime(3, 4));
+		assertEquals(0, restarted.getRoom(5, 5).getHistory().size());
+
+		new File(dir, "world.0").delete();
+		new File(dir, "world.1").delete();
+		dir.delete();
+	}
+
+}
@@ -0,0 +1,182 @@
+package shared;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+
+/**
+ * MessageReader reads the fields of one protocol frame out of a byte array.
+ * A reader is reset onto each new frame, so reading numbers never allocates.
+ *
+ * A MessageReader is not thread safe.
+ *
+ * @author Andy Katz
+ *
+ */
+public class MessageReader {
+
+	private byte[] buffer;
+	private int position;
+	private int limit;
+	private byte[] frame;
+
+	public MessageReader(){
+		buffer = new byte[0];
+		frame = new byte[256];
+	}
+
+	/**
+	 * readFrame() reads the next frame from a stream and points the reader at it.
+	 * The frame is kept in a buffer that is reused for the next frame.
+	 *
+	 * @param in the stream, ideally buffered
+	 * @param maxLength the largest frame that is accepted
+	 * @return the opcode of the frame
+	 * @throws IOException if the stream fails or the frame is malformed
+	 */
+	public int readFrame(InputStream in, int maxLength) throws IOException{
+		int length = 0;
+		for(int shift = 0; ; shift += 7){
+			if(shift > 28)
+				throw new ProtocolException("Malformed frame length");
+
+			int b = in.read();
+			if(b < 0)
+				throw new EOFException("Connection closed");
+
+			length |= (b & 0x7F) << shift;
+			if((b & 0x80) == 0)
+				break;
+		}
+		if(length <= 0 || length > maxLength)
+			throw new ProtocolException("Bad frame length " + length);
+
+		if(frame.length < length)
+			frame = new byte[Math.max(length, frame.length * 2)];
+
+		int read = 0;
+		while(read < length){
+			int count = in.read(frame, read, length - read);
+			if(count < 0)
+				throw new EOFException("Connection closed");
+			read += count;
+		}
+
+		reset(frame, 0, length);
+		return readByte();
+	}
+
+	/**
+	 * reset() points the reader at a new frame.
+	 *
+	 * @param bytes the array holding the frame
+	 * @param offset where the frame starts, just after its length
+	 * @param length the length of the frame
+	 */
+	public void reset(byte[] bytes, int offset, int length){
+		buffer = bytes;
+		position = offset;
+		limit = offset + length;
+	}
+
+	/**
+	 * remaining() gets the number of bytes left in the frame.
+	 *
+	 * @return the number of bytes
+	 */
+	public int remaining(){
+		return limit - position;
+	}
+
+	/**
+	 * copyRemaining() copies the bytes left in the frame without reading them.
+	 *
+	 * @return the bytes
+	 */
+	public byte[] copyRemaining(){
+		byte[] bytes = new byte[limit - position];
+		System.arraycopy(buffer, position, bytes, 0, bytes.length);
+		return bytes;
+	}
+
+	/**
+	 * readByte() reads one unsigned byte.
+	 *
+	 * @return the byte
+	 * @throws ProtocolException if the frame is too short
+	 */
+	public int readByte() throws ProtocolException{
+		if(position >= limit)
+			throw new ProtocolException("Frame too short");
+
+		return buffer[position++] & 0xFF;
+	}
+
+	/**
+	 * readVarInt() reads an unsigned varint.
+	 *
+	 * @return the value
+	 * @throws ProtocolException if the varint is malformed or the frame too short
+	 */
+	public int readVarInt() throws ProtocolException{
+		int value = 0;
+		for(int shift = 0; shift < 35; shift += 7){
+			int b = readByte();
+			value |= (b & 0x7F) << shift;
+			if((b & 0x80) == 0)
+				return value;
+		}
+		throw new ProtocolException("Malformed varint");
+	}
+
+	/**
+	 * readVarLong() reads an unsigned varint long.
+	 *
+	 * @return the value
+	 * @throws ProtocolException if the varint is malformed or the frame too short
+	 */
+	public long readVarLong() throws ProtocolException{
+		long value = 0;
+		for(int shift = 0; shift < 70; shift += 7){
+			int b = readByte();
+			value |= (long) (b & 0x7F) << shift;
+			if((b & 0x80) == 0)
+				return value;
+		}
+		throw new ProtocolException("Malformed varint");
+	}
+
+	/**
+	 * readString() reads a string written by MessageWriter.writeString().
+	 *
+	 * @return the string
+	 * @throws ProtocolException if the frame is too short
+	 */
+	public String readString() throws ProtocolException{
+		int length = readVarInt();
+		if(length < 0 || length > remaining())
+			throw new ProtocolException("Frame too short");
+
+		String value = new String(buffer, position, length, MessageWriter.UTF8);
+		position += length;
+		return value;
+	}
+
+	/**
+	 * readBytes() reads the given number of raw bytes.
+	 *
+	 * @param length the number of bytes
+	 * @return the bytes
+	 * @throws ProtocolException if the frame is too short
+	 */
+	public byte[] readBytes(int length) throws ProtocolException{
+		if(length < 0 || length > remaining())
+			throw new ProtocolException("Frame too short");
+
+		byte[] bytes = new byte[length];
+		System.arraycopy(buffer, position, bytes, 0, length);
+		position += length;
+		return bytes;
+	}
+}
@@ -0,0 +1,181 @@
+package shared;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * MessageWriter builds protocol frames. A writer is reused for many frames:
+ * begin() starts a frame, the write functions add its fields and the frame is
+ * taken with toByteBuffer() or writeTo().
+ *
+ * A MessageWriter is not thread safe.
+ *
+ * @author Andy Katz
+ *
+ */
+public class MessageWriter {
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	//Room for the largest varint length in front of the frame
+	private static final int HEADER = 5;
+
+	private byte[] buffer;
+	private int position;
+
+	public MessageWriter(){
+		buffer = new byte[256];
+		position = HEADER;
+	}
+
+	/**
+	 * begin() starts a new frame, dropping anything not yet taken.
+	 *
+	 * @param opcode the opcode of the message
+	 * @return this writer
+	 */
+	public MessageWriter begin(int opcode){
+		position = HEADER;
+		return writeByte(opcode);
+	}
+
+	/**
+	 * writeByte() adds one byte to the frame.
+	 *
+	 * @param value the byte
+	 * @return this writer
+	 */
+	public MessageWriter writeByte(int value){
+		ensure(1);
+		buffer[position++] = (byte) value;
+		return this;
+	}
+
+	/**
+	 * writeVarInt() adds an unsigned varint to the frame.
+	 *
+	 * @param value the value
+	 * @return this writer
+	 */
+	public MessageWriter writeVarInt(int value){
+		ensure(5);
+		while((value & ~0x7F) != 0){
+			buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buffer[position++] = (byte) value;
+		return this;
+	}
+
+	/**
+	 * writeVarLong() adds an unsigned varint long to the frame.
+	 *
+	 * @param value the value
+	 * @return this writer
+	 */
+	public MessageWriter writeVarLong(long value){
+		ensure(10);
+		while((value & ~0x7FL) != 0){
+			buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buffer[position++] = (byte) value;
+		return this;
+	}
+
+	/**
+	 * writeString() adds a string as its UTF-8 byte count and bytes.
+	 *
+	 * @param value the string
+	 * @return this writer
+	 */
+	public MessageWriter writeString(String value){
+		byte[] bytes = value.getBytes(UTF8);
+		writeVarInt(bytes.length);
+		return writeBytes(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * writeBytes() adds raw bytes to the frame.
+	 *
+	 * @param bytes the bytes
+	 * @param offset where the bytes start
+	 * @param length the number of bytes
+	 * @return this writer
+	 */
+	public MessageWriter writeBytes(byte[] bytes, int offset, int length){
+		ensure(length);
+		System.arraycopy(bytes, offset, buffer, position, length);
+		position += length;
+		return this;
+	}
+
+	/**
+	 * size() gets the number of bytes in the frame so far, opcode included.
+	 *
+	 * @return the size
+	 */
+	public int size(){
+		return position - HEADER;
+	}
+
+	/**
+	 * toByteBuffer() takes the frame as a new ByteBuffer that is ready to be sent.
+	 *
+	 * @return the frame
+	 */
+	public ByteBuffer toByteBuffer(){
+		int start = writeHeader();
+		byte[] frame = new byte[position - start];
+		System.arraycopy(buffer, start, frame, 0, frame.length);
+		return ByteBuffer.wrap(frame);
+	}
+
+	/**
+	 * writeTo() writes the frame to a stream.
+	 *
+	 * @param out the stream
+	 * @throws IOException if the stream fails
+	 */
+	public void writeTo(OutputStream out) throws IOException{
+		int start = writeHeader();
+		out.write(buffer, start, position - start);
+	}
+
+	/**
+	 * writeHeader() is a private helper that writes the length of the frame
+	 * in front of it.
+	 *
+	 * @return where the frame starts in the buffer
+	 */
+	private int writeHeader(){
+		int length = size();
+		int start = HEADER - Protocol.varIntSize(length);
+		int i = start;
+		while((length & ~0x7F) != 0){
+			buffer[i++] = (byte) ((length & 0x7F) | 0x80);
+			length >>>= 7;
+		}
+		buffer[i] = (byte) length;
+		return start;
+	}
+
+	/**
+	 * ensure() is a private helper that grows the buffer to fit more bytes.
+	 *
+	 * @param count the number of bytes to fit
+	 */
+	private void ensure(int count){
+		if(position + count <= buffer.length)
+			return;
+
+		int size = buffer.length * 2;
+		while(size < position + count)
+			size *= 2;
+
+		byte[] bigger = new byte[size];
+		System.arraycopy(buffer, 0, bigger, 0, position);
+		buffer = bigger;
+	}
+}
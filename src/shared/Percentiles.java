@@ -0,0 +1,82 @@
+package shared;
+
+import java.util.Arrays;
+
+/**
+ * Percentiles collects measurements, such as latencies, and tells the value
+ * below which a given fraction of them fall. Every value is kept, so it is
+ * meant for load tests and not for a server that runs for weeks.
+ *
+ * A Percentiles is thread safe.
+ *
+ * @author Andy Katz
+ *
+ */
+public class Percentiles {
+
+	private long[] values;
+	private int count;
+	private boolean sorted;
+
+	public Percentiles(){
+		values = new long[1024];
+		count = 0;
+		sorted = true;
+	}
+
+	/**
+	 * add() adds a measurement.
+	 *
+	 * @param value the measurement
+	 */
+	public synchronized void add(long value){
+		if(count == values.length)
+			values = Arrays.copyOf(values, count * 2);
+		values[count++] = value;
+		sorted = false;
+	}
+
+	/**
+	 * count() gets the number of measurements.
+	 *
+	 * @return the number
+	 */
+	public synchronized int count(){
+		return count;
+	}
+
+	/**
+	 * get() gets the smallest measurement that at least the given fraction of
+	 * the measurements are no greater than.
+	 *
+	 * @param fraction the fraction, such as 0.99
+	 * @return the measurement, 0 if there are none
+	 */
+	public synchronized long get(double fraction){
+		if(count == 0)
+			return 0;
+		if(!sorted){
+			Arrays.sort(values, 0, count);
+			sorted = true;
+		}
+
+		//Rounding of the fraction must not push a whole rank up one
+		int rank = (int) Math.ceil(fraction * count - 1e-9);
+		return values[Math.min(count, Math.max(1, rank)) - 1];
+	}
+
+	/**
+	 * report() describes the usual percentiles in one line.
+	 *
+	 * @param divisor what each measurement is divided by, for the unit
+	 * @param unit the name of the unit
+	 * @return the line
+	 */
+	public String report(long divisor, String unit){
+		return "p50 " + get(0.5) / divisor + unit
+			+ ", p90 " + get(0.9) / divisor + unit
+			+ ", p99 " + get(0.99) / divisor + unit
+			+ ", p99.9 " + get(0.999) / divisor + unit
+			+ ", max " + get(1) / divisor + unit;
+	}
+}
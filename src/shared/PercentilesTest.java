@@ -0,0 +1,35 @@
+package shared;
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+
+public class PercentilesTest {
+
+	/**
+	 * Tests that percentiles are the measurements at their rank, whatever order
+	 * the measurements were added in.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void Ranks() throws Exception{
+		Percentiles p = new Percentiles();
+		assertEquals(0, p.get(0.5));
+
+		for(int i = 2000; i >= 1; i--){
+			p.add(i);
+		}
+		assertEquals(2000, p.count());
+		assertEquals(1000, p.get(0.5));
+		assertEquals(1980, p.get(0.99));
+		assertEquals(1998, p.get(0.999));
+		assertEquals(2000, p.get(1));
+		assertEquals(1, p.get(0));
+
+		//Adding after a read sorts again
+		p.add(0);
+		assertEquals(0, p.get(0));
+	}
+
+}
@@ -0,0 +1,87 @@
+package shared;
+
+/**
+ * Protocol holds the constants of the binary protocol spoken between the client
+ * and the server.
+ *
+ * Every message is a frame: a varint length, then that many bytes holding a
+ * one byte opcode and the fields of the message. Numbers are unsigned varints
+ * unless noted, and strings are a varint byte count followed by UTF-8.
+ *
+ * A session starts with the client sending HELLO with the newest version it
+ * speaks and how long it draws footsteps for, so that Rooms are sent without
+ * the footsteps it would not draw. The server answers with WELCOME carrying the version both will use,
+ * or closes the connection if it cannot speak to the client.
+ *
+ * Rooms carry only their newest chat lines. A client scrolling back through
+ * the chat asks for older lines a page at a time with REQUEST_HISTORY.
+ *
+ * A client that has been quiet for a while is sent PING, which it answers with
+ * PONG carrying the same token. A client that stays quiet is disconnected.
+ *
+ * @author Andy Katz
+ *
+ */
+public class Protocol {
+	public static final int VERSION = 7;
+	public static final int MIN_VERSION = 7;
+
+	/** Largest frame a client may send to the server. */
+	public static final int MAX_CLIENT_FRAME = 4096;
+	/** Largest frame the server may send to a client. */
+	public static final int MAX_SERVER_FRAME = 16 * 1024 * 1024;
+
+	//Client to server
+
+	/** HELLO version window, where window is how many milliseconds old a footstep
+	 * the client still draws may be, or 0 for all */
+	public static final int HELLO = 0x01;
+	/** FOOTSTEP gridX gridY x y time */
+	public static final int FOOTSTEP = 0x02;
+	/** MESSAGE line */
+	public static final int MESSAGE = 0x03;
+	/** REQUEST_ROOM gridX gridY epoch version, where epoch and version are those of
+	 * the copy the client holds, or 0 for none */
+	public static final int REQUEST_ROOM = 0x04;
+	/** PONG token, where token is that of the PING being answered */
+	public static final int PONG = 0x05;
+	/** REQUEST_HISTORY gridX gridY before count, asking for up to count chat
+	 * lines older than the line numbered before */
+	public static final int REQUEST_HISTORY = 0x06;
+
+	//Server to client
+
+	/** WELCOME version id x y type */
+	public static final int WELCOME = 0x41;
+	/** MESSAGE gridX gridY line */
+	public static final int MESSAGE_UPDATE = 0x43;
+	/** ROOM snapshot, see RoomCodec */
+	public static final int ROOM = 0x44;
+	/** ROOM_DELTA gridX gridY delta, see RoomCodec */
+	public static final int ROOM_DELTA = 0x45;
+	/** FOOTSTEP_BATCH gridX gridY newest cellCount (x y age)... playerCount
+	 * (id type x y)..., where age is newest minus the time of the footstep */
+	public static final int FOOTSTEP_BATCH = 0x46;
+	/** PING token */
+	public static final int PING = 0x47;
+	/** HISTORY gridX gridY page, see RoomCodec */
+	public static final int HISTORY = 0x48;
+
+	private Protocol(){
+	}
+
+	/**
+	 * varIntSize() gets the number of bytes the given value takes as a varint.
+	 *
+	 * @param value the value
+	 * @return the number of bytes
+	 */
+	public static int varIntSize(int value){
+		int size = 1;
+		while((value & ~0x7F) != 0){
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+}
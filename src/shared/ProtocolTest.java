@@ -0,0 +1,74 @@
+package shared;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+
+public class ProtocolTest {
+
+	/**
+	 * Tests that a frame reads back the fields that were written.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void RoundTrip() throws Exception{
+		MessageWriter writer = new MessageWriter();
+		writer.begin(Protocol.FOOTSTEP_BATCH)
+			.writeVarInt(3)
+			.writeVarInt(300)
+			.writeVarLong(1365000000000L)
+			.writeString("hello world");
+		ByteBuffer frame = writer.toByteBuffer();
+
+		MessageReader reader = new MessageReader();
+		int length = frame.get();
+		reader.reset(frame.array(), frame.position(), length);
+
+		assertEquals(Protocol.FOOTSTEP_BATCH, reader.readByte());
+		assertEquals(3, reader.readVarInt());
+		assertEquals(300, reader.readVarInt());
+		assertEquals(1365000000000L, reader.readVarLong());
+		assertEquals("hello world", reader.readString());
+		assertEquals(0, reader.remaining());
+	}
+
+	/**
+	 * Tests that frames are read back one at a time from a stream.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void ReadFrame() throws Exception{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		MessageWriter writer = new MessageWriter();
+		writer.begin(Protocol.REQUEST_ROOM).writeVarInt(1).writeVarInt(2).writeTo(out);
+		writer.begin(Protocol.MESSAGE).writeString("hi").writeTo(out);
+
+		MessageReader reader = new MessageReader();
+		ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+		assertEquals(Protocol.REQUEST_ROOM, reader.readFrame(in, Protocol.MAX_CLIENT_FRAME));
+		assertEquals(1, reader.readVarInt());
+		assertEquals(2, reader.readVarInt());
+		assertEquals(Protocol.MESSAGE, reader.readFrame(in, Protocol.MAX_CLIENT_FRAME));
+		assertEquals("hi", reader.readString());
+	}
+
+	/**
+	 * Tests that reading past the end of a frame fails.
+	 *
+	 * @throws Exception
+	 */
+	@Test(expected = ProtocolException.class)
+	public void ShortFrame() throws Exception{
+		MessageReader reader = new MessageReader();
+		reader.reset(new byte[] {(byte) 0x80}, 0, 1);
+		reader.readVarInt();
+	}
+
+}
@@ -1,30 +1,96 @@
 package shared;
-import java.io.Serializable;
-import java.util.ArrayList;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * Room contains the information for footsteps in a given room.
+ * Rooms are sent to clients with RoomCodec.
+ * 
+ * Every change to a Room increases its version, and every cell and chat line
+ * remembers the version it last changed at, so that a client holding an older
+ * copy can be sent only what changed since.
+ * 
+ * A Room may be used by many threads at once without locking. Footstep times
+ * only ever increase, with compare-and-set, and a cell's version is raised
+ * before the Room's version is, so a reader that reads the Room's version
+ * first sees every change up to it. Chat lines are appended one at a time and
+ * published as snapshots that never change, so readers never wait and never
+ * see a half added line.
+ * 
+ * Footstep times are kept as 32 bit offsets from a base time, so a cell takes
+ * four bytes. The base is moved when a time falls past the end of the range,
+ * which covers about 49 days; times that end up before the start of the range
+ * are kept as its start, which is long enough ago for any footstep to have
+ * faded. Times that clients send are passed through clampTime() first, so
+ * one step with a clock far ahead cannot move the base and age every other
+ * cell of the Room.
+ * 
+ * The chat history is bounded by a number of lines and a number of bytes, and
+ * the oldest lines are dropped past either. Lines are kept as UTF-8 in chunks
+ * of a few kilobytes that are only ever appended to, and every line has a
+ * number counted from the first line the Room ever had, so the same line has
+ * the same number in every copy of the Room however many lines were dropped.
  * 
  * @author Andy Katz
  *
  */
-public class Room implements Serializable{
+public class Room {
 	public static final int TILE_SIZE = 32;
+	public static final int DEFAULT_HISTORY_LINES = 200;
+	public static final int DEFAULT_HISTORY_BYTES = 32 * 1024;
+	//Milliseconds a footstep from a client may be ahead of the current time
+	public static final long MAX_AHEAD = 60 * 1000L;
+
+	//Last epoch given out, so Rooms made in the same millisecond differ
+	private static final AtomicLong lastEpoch = new AtomicLong(0);
 
-	private long[][] footsteps;
-	ArrayList<String> chatHistory;
+	private final int width;
+	private final int height;
+	
+	//Both indexed by x * height + y
+	private volatile Footsteps footsteps;
+	private final AtomicLongArray cellVersions;
+	private final Object rebaseLock;
+	
+	private final int historyLines;
+	private final int historyBytes;
+	private final Object chatLock;
+	private volatile History history;
+	//Bytes of the lines in the history, guarded by chatLock
+	private long historySize;
+	
 	int gridX;
 	int gridY;
 	
+	long epoch;
+	private final AtomicLong version;
+	volatile long syncedVersion;
+	
 	public Room(int width, int height, int x, int y){
-		footsteps = new long[width / TILE_SIZE][height / TILE_SIZE];
-		chatHistory = new ArrayList<String>();
+		this(width, height, x, y, DEFAULT_HISTORY_LINES, DEFAULT_HISTORY_BYTES);
+	}
+	
+	public Room(int width, int height, int x, int y, int historyLines, int historyBytes){
+		this.width = width / TILE_SIZE;
+		this.height = height / TILE_SIZE;
+		footsteps = new Footsteps(Footsteps.NONE, new AtomicIntegerArray(this.width * this.height));
+		rebaseLock = new Object();
+		cellVersions = new AtomicLongArray(this.width * this.height);
+		this.historyLines = Math.max(1, historyLines);
+		this.historyBytes = Math.max(1, historyBytes);
+		chatLock = new Object();
+		history = new History(new Chunk[0], 0, 0);
+		historySize = 0;
 		
 		gridX = x;
 		gridY = y;
-	}
-	
-	public Room() {
+		
+		epoch = nextEpoch();
+		version = new AtomicLong(0);
+		syncedVersion = 0;
 	}
 
 	/**
@@ -37,16 +103,44 @@ public class Room implements Serializable{
 	 * @return true if updated
 	 */
 	public boolean updateTime(int x, int y, long time){
-		if(x >= footsteps.length || y >= footsteps[0].length || x < 0 || y < 0)
+		if(x >= width || y >= height || x < 0 || y < 0 || time <= 0)
 			return false;
 		
-		if (footsteps[x][y] < time){
-			footsteps[x][y] = time;
-			return true;
+		int cell = x * height + y;
+		Footsteps current = footsteps;
+		boolean raised = false;
+		while(true){
+			if(current.base == Footsteps.NONE || time - current.base >= Footsteps.RANGE)
+				current = rebase(current, time);
+			
+			raised |= current.raise(cell, time);
+			//A rebase may have copied the cell before it was raised
+			Footsteps latest = footsteps;
+			if(latest == current)
+				break;
+			current = latest;
 		}
-		else{
+		if(!raised)
 			return false;
-		}
+		
+		stamp(cellVersions, cell);
+		return true;
+	}
+	
+	/**
+	 * clampTime() checks a footstep time sent by a client against the current
+	 * time. Times too old to be kept exactly are refused, and times ahead of
+	 * the current time by more than MAX_AHEAD are kept as MAX_AHEAD ahead.
+	 * 
+	 * @param time the time the client sent
+	 * @param now the current time
+	 * @return the time to use, 0 if it is refused
+	 */
+	public static long clampTime(long time, long now){
+		if(time < now - Footsteps.RANGE / 2)
+			return 0;
+		
+		return Math.min(time, now + MAX_AHEAD);
 	}
 	
 	/**
@@ -57,28 +151,215 @@ public class Room implements Serializable{
 	 * @return	the time of the x,y
 	 */
 	public long getTime(int x, int y){
-		if(x >= footsteps.length || y >= footsteps[0].length || x < 0 || y < 0)
+		if(x >= width || y >= height || x < 0 || y < 0)
 			return 0;
 		
-		return footsteps[x][y];
+		return footsteps.get(x * height + y);
+	}
+	
+	/**
+	 * rebase() is a private helper that moves the footsteps to a base time that
+	 * leaves room for the given time, halfway through the range, unless another
+	 * thread already has.
+	 * 
+	 * @param current the footsteps the caller found
+	 * @param time the time to make room for
+	 * @return the footsteps to use
+	 */
+	private Footsteps rebase(Footsteps current, long time){
+		synchronized(rebaseLock){
+			Footsteps latest = footsteps;
+			if(latest != current || (latest.base != Footsteps.NONE && time - latest.base < Footsteps.RANGE))
+				return latest;
+			
+			Footsteps moved = new Footsteps(time - Footsteps.RANGE / 2, new AtomicIntegerArray(latest.offsets.length()));
+			//Copied before and after it is published, so readers never miss a cell
+			//and a writer that finds it published writes again
+			moved.copy(latest);
+			footsteps = moved;
+			moved.copy(latest);
+			return moved;
+		}
 	}
 	
 	/**
-	 * addLine() adds a line to the chat history for the Room.
+	 * addLine() adds a line to the chat history for the Room, dropping the oldest
+	 * lines if the history is then too long.
 	 * 
 	 * @param line the String to be added
+	 * @return the number of the line
+	 */
+	public long addLine(String line){
+		byte[] bytes = line.getBytes(MessageWriter.UTF8);
+		synchronized(chatLock){
+			History current = history;
+			//The line is published with a version no lower than the one it ends up
+			//with, so the versions stay in order for firstLineSince()
+			Chunk[] chunks = Chunk.append(current.chunks, current.end, bytes, 0, bytes.length, version.get() + 1);
+			Chunk last = chunks[chunks.length - 1];
+			
+			long start = current.start;
+			long end = current.end + 1;
+			historySize += bytes.length;
+			while(end - start > historyLines || (historySize > historyBytes && end - start > 1)){
+				historySize -= Chunk.length(chunks, start);
+				start++;
+			}
+			
+			history = new History(Chunk.drop(chunks, start), start, end);
+			stamp(last.versions, last.count - 1);
+			return end - 1;
+		}
+	}
+	
+	/**
+	 * truncateHistory() drops the chat lines from the given line number on, so
+	 * that the next line added gets that number. If the history ends before it,
+	 * the history is emptied and skips ahead to it. Used when a snapshot or a
+	 * delta replaces the lines a client added on its own, and to carry the
+	 * numbers of the lines over to a new Room.
+	 * 
+	 * @param next the number of the first line to drop
+	 */
+	public void truncateHistory(long next){
+		synchronized(chatLock){
+			History current = history;
+			if(current.end == next)
+				return;
+			
+			//Copied, so that lines added later do not change older snapshots
+			Chunk[] chunks = new Chunk[0];
+			long start = next;
+			historySize = 0;
+			if(next > current.start && next < current.end){
+				start = current.start;
+				chunks = Chunk.copy(chunks, current.chunks, start, next);
+				historySize = Chunk.size(chunks, start, next);
+			}
+			history = new History(chunks, start, next);
+		}
+	}
+	
+	/**
+	 * prependHistory() adds older chat lines before the oldest line of the
+	 * history, as many of the newest of them as the history has room for. The
+	 * lines are ignored unless they end right where the history starts. Used
+	 * when a client pages back through the history.
+	 * 
+	 * @param first the number of the first of the lines
+	 * @param lines the lines
+	 */
+	void prependHistory(long first, List<String> lines){
+		synchronized(chatLock){
+			History current = history;
+			if(lines.isEmpty() || first + lines.size() != current.start)
+				return;
+			
+			byte[][] bytes = new byte[lines.size()][];
+			int from = lines.size();
+			long size = historySize;
+			while(from > 0 && current.size() + lines.size() - from < historyLines){
+				byte[] line = lines.get(from - 1).getBytes(MessageWriter.UTF8);
+				if(size + line.length > historyBytes)
+					break;
+				
+				bytes[--from] = line;
+				size += line.length;
+			}
+			if(from == lines.size())
+				return;
+			
+			//Older lines come before every version, so they are never sent on
+			Chunk[] chunks = new Chunk[0];
+			for(int i = from; i < lines.size(); i++){
+				chunks = Chunk.append(chunks, first + i, bytes[i], 0, bytes[i].length, 0);
+			}
+			chunks = Chunk.copy(chunks, current.chunks, current.start, current.end);
+			historySize = size;
+			history = new History(chunks, first + from, current.end);
+		}
+	}
+	
+	/**
+	 * getHistory() fetches the chat history of the Room. The list is a snapshot
+	 * that does not change when lines are added later.
+	 * 
+	 * @return the history as a List
+	 */
+	public List<String> getHistory(){
+		return history;
+	}
+	
+	/**
+	 * history() gets the current snapshot of the chat history, for RoomCodec.
+	 * 
+	 * @return the snapshot
+	 */
+	History history(){
+		return history;
+	}
+	
+	/**
+	 * getEpoch() gets the epoch of the Room. A Room that is created again, for
+	 * example after the server restarts, has a new epoch, so versions of one
+	 * epoch mean nothing in another.
+	 * 
+	 * @return the epoch
+	 */
+	public long getEpoch(){
+		return epoch;
+	}
+	
+	/**
+	 * getVersion() gets the version of the Room, which increases with every change.
+	 * 
+	 * @return the version
+	 */
+	public long getVersion(){
+		return version.get();
+	}
+	
+	/**
+	 * getCellVersion() gets the version at which the given cell last changed.
+	 * 
+	 * @param x the x-coordinate in the Room
+	 * @param y the y-coordinate in the Room
+	 * @return the version, 0 if it never changed
+	 */
+	public long getCellVersion(int x, int y){
+		if(x >= width || y >= height || x < 0 || y < 0)
+			return 0;
+		
+		return cellVersions.get(x * height + y);
+	}
+	
+	/**
+	 * firstLineSince() finds the first chat line added after the given version.
+	 * 
+	 * @param since the version
+	 * @return the index of the line, or the number of lines if there is none
+	 */
+	public int firstLineSince(long since){
+		return history.firstSince(since);
+	}
+	
+	/**
+	 * getFirstLine() gets the number of the oldest chat line the Room still has.
+	 * 
+	 * @return the line number
 	 */
-	public void addLine(String line){
-		chatHistory.add(line);
+	public long getFirstLine(){
+		return history.start;
 	}
 	
 	/**
-	 * getHistory() fetches the chat history of the Room.
+	 * getSyncedVersion() gets the server version that this copy of the Room was
+	 * last brought up to. Only meaningful on the client.
 	 * 
-	 * @return the history as an ArrayList
+	 * @return the version
 	 */
-	public ArrayList<String> getHistory(){
-		return chatHistory;
+	public long getSyncedVersion(){
+		return syncedVersion;
 	}
 	
 	/**
@@ -105,7 +386,7 @@ public class Room implements Serializable{
 	 * @return the width
 	 */
 	public int getWidth(){
-		return footsteps.length;
+		return width;
 	}
 	
 	/**
@@ -114,6 +395,352 @@ public class Room implements Serializable{
 	 * @return the height
 	 */
 	public int getHeight(){
-		return footsteps[0].length;
+		return height;
+	}
+	
+	/**
+	 * nextEpoch() is a private helper that gets an epoch for a new Room: the
+	 * current time, or one past the last epoch if that is not older.
+	 * 
+	 * @return the epoch
+	 */
+	private static long nextEpoch(){
+		long now = System.currentTimeMillis();
+		long last;
+		do{
+			last = lastEpoch.get();
+			if(now <= last)
+				now = last + 1;
+		}while(!lastEpoch.compareAndSet(last, now));
+		return now;
+	}
+	
+	/**
+	 * raise() is a private helper that sets an element to a value if the value is
+	 * larger.
+	 * 
+	 * @param array the array
+	 * @param index the index of the element
+	 * @param value the value
+	 * @return true if the element was raised
+	 */
+	private static boolean raise(AtomicLongArray array, int index, long value){
+		long current;
+		do{
+			current = array.get(index);
+			if(current >= value)
+				return false;
+		}while(!array.compareAndSet(index, current, value));
+		return true;
+	}
+	
+	/**
+	 * stamp() is a private helper that takes the next version of the Room for a
+	 * change and records it in the given element. The element is raised before
+	 * the version, so a reader that sees the version also sees the element.
+	 * 
+	 * @param versions the versions of the cells or lines
+	 * @param index the index of the changed cell or line
+	 */
+	private void stamp(AtomicLongArray versions, int index){
+		long current;
+		do{
+			current = version.get();
+			raise(versions, index, current + 1);
+		}while(!version.compareAndSet(current, current + 1));
+	}
+	
+	/**
+	 * Footsteps holds the footstep times of a Room as unsigned offsets from a
+	 * base time. An offset of 0 is a cell nobody has stepped on, and an offset
+	 * of n is the time base + n - 1.
+	 */
+	private static class Footsteps {
+		static final long RANGE = 0xFFFFFFFFL;
+		//Base of a Room nobody has stepped in yet
+		static final long NONE = Long.MIN_VALUE;
+		
+		final long base;
+		final AtomicIntegerArray offsets;
+		
+		Footsteps(long base, AtomicIntegerArray offsets){
+			this.base = base;
+			this.offsets = offsets;
+		}
+		
+		/**
+		 * get() gets the time of a cell.
+		 * 
+		 * @param cell the index of the cell
+		 * @return the time, 0 if nobody has stepped on it
+		 */
+		long get(int cell){
+			long offset = offsets.get(cell) & RANGE;
+			return offset == 0 ? 0 : base + offset - 1;
+		}
+		
+		/**
+		 * raise() sets the time of a cell if it is newer. The time must not be
+		 * past the range; a time before it is kept as its start.
+		 * 
+		 * @param cell the index of the cell
+		 * @param time the time
+		 * @return true if the cell was raised
+		 */
+		boolean raise(int cell, long time){
+			long offset = Math.max(1, time - base + 1);
+			int current;
+			do{
+				current = offsets.get(cell);
+				if((current & RANGE) >= offset)
+					return false;
+			}while(!offsets.compareAndSet(cell, current, (int) offset));
+			return true;
+		}
+		
+		/**
+		 * copy() raises every cell to its time in other footsteps.
+		 * 
+		 * @param other the footsteps to copy
+		 */
+		void copy(Footsteps other){
+			for(int i = 0; i < offsets.length(); i++){
+				long time = other.get(i);
+				if(time != 0)
+					raise(i, time);
+			}
+		}
+	}
+	
+	/**
+	 * Chunk holds chat lines as UTF-8 bytes, one after another. Lines are only
+	 * ever appended, under chatLock, so the lines of a chunk that a History
+	 * covers never change.
+	 */
+	private static class Chunk {
+		//Bytes a chunk holds, unless one line needs more
+		static final int BYTES = 2048;
+		static final int LINES = 64;
+		
+		//Number of the first line in the chunk
+		final long first;
+		final byte[] arena;
+		//End of each line in the arena
+		final int[] ends;
+		final AtomicLongArray versions;
+		int count;
+		
+		Chunk(long first, int bytes){
+			this.first = first;
+			arena = new byte[bytes];
+			ends = new int[LINES];
+			versions = new AtomicLongArray(LINES);
+			count = 0;
+		}
+		
+		/**
+		 * start() gets where a line starts in the arena.
+		 * 
+		 * @param index the index of the line in the chunk
+		 * @return the offset
+		 */
+		int start(int index){
+			return index == 0 ? 0 : ends[index - 1];
+		}
+		
+		/**
+		 * append() adds a line after the last line of the chunks, starting a new
+		 * chunk if the last one is full.
+		 * 
+		 * @param chunks the chunks
+		 * @param number the number of the line
+		 * @param bytes holds the line
+		 * @param offset where the line starts
+		 * @param length the length of the line
+		 * @param version the version of the line
+		 * @return the chunks, a new array if a chunk was started
+		 */
+		static Chunk[] append(Chunk[] chunks, long number, byte[] bytes, int offset, int length, long version){
+			Chunk last = chunks.length == 0 ? null : chunks[chunks.length - 1];
+			if(last == null || last.count == LINES || last.start(last.count) + length > last.arena.length){
+				last = new Chunk(number, Math.max(BYTES, length));
+				Chunk[] more = new Chunk[chunks.length + 1];
+				System.arraycopy(chunks, 0, more, 0, chunks.length);
+				more[chunks.length] = last;
+				chunks = more;
+			}
+			
+			int from = last.start(last.count);
+			System.arraycopy(bytes, offset, last.arena, from, length);
+			last.ends[last.count] = from + length;
+			last.versions.set(last.count, version);
+			last.count++;
+			return chunks;
+		}
+		
+		/**
+		 * copy() appends lines of other chunks after the last line of the chunks.
+		 * 
+		 * @param chunks the chunks
+		 * @param other the chunks holding the lines
+		 * @param start the number of the first line to copy
+		 * @param end the number of the line after the last to copy
+		 * @return the chunks, a new array if a chunk was started
+		 */
+		static Chunk[] copy(Chunk[] chunks, Chunk[] other, long start, long end){
+			for(long n = start; n < end; n++){
+				Chunk chunk = find(other, n);
+				int index = (int) (n - chunk.first);
+				int from = chunk.start(index);
+				chunks = append(chunks, n, chunk.arena, from, chunk.ends[index] - from, chunk.versions.get(index));
+			}
+			return chunks;
+		}
+		
+		/**
+		 * size() gets the bytes taken by a run of lines.
+		 * 
+		 * @param chunks the chunks, which must hold the lines
+		 * @param start the number of the first line
+		 * @param end the number of the line after the last
+		 * @return the number of bytes
+		 */
+		static long size(Chunk[] chunks, long start, long end){
+			long size = 0;
+			for(long n = start; n < end; n++){
+				size += length(chunks, n);
+			}
+			return size;
+		}
+		
+		/**
+		 * drop() drops the chunks that only hold lines before the given one.
+		 * 
+		 * @param chunks the chunks
+		 * @param start the number of the oldest line to keep
+		 * @return the chunks, a new array if any were dropped
+		 */
+		static Chunk[] drop(Chunk[] chunks, long start){
+			int dropped = 0;
+			while(dropped < chunks.length - 1 && chunks[dropped + 1].first <= start)
+				dropped++;
+			if(dropped == 0)
+				return chunks;
+			
+			Chunk[] fewer = new Chunk[chunks.length - dropped];
+			System.arraycopy(chunks, dropped, fewer, 0, fewer.length);
+			return fewer;
+		}
+		
+		/**
+		 * find() finds the chunk holding a line.
+		 * 
+		 * @param chunks the chunks, which must hold the line
+		 * @param number the number of the line
+		 * @return the chunk
+		 */
+		static Chunk find(Chunk[] chunks, long number){
+			int low = 0;
+			int high = chunks.length - 1;
+			while(low < high){
+				int mid = (low + high + 1) >>> 1;
+				if(chunks[mid].first <= number)
+					low = mid;
+				else
+					high = mid - 1;
+			}
+			return chunks[low];
+		}
+		
+		/**
+		 * length() gets the length of a line in bytes.
+		 * 
+		 * @param chunks the chunks, which must hold the line
+		 * @param number the number of the line
+		 * @return the length
+		 */
+		static int length(Chunk[] chunks, long number){
+			Chunk chunk = find(chunks, number);
+			int index = (int) (number - chunk.first);
+			return chunk.ends[index] - chunk.start(index);
+		}
+	}
+	
+	/**
+	 * History is a snapshot of the chat history of a Room. Lines in a snapshot
+	 * are never changed, so a snapshot can be read while lines are added.
+	 */
+	static class History extends AbstractList<String> {
+		private final Chunk[] chunks;
+		//Numbers of the oldest line and of the line after the newest
+		private final long start;
+		private final long end;
+		
+		History(Chunk[] chunks, long start, long end){
+			this.chunks = chunks;
+			this.start = start;
+			this.end = end;
+		}
+		
+		@Override
+		public String get(int index){
+			if(index < 0 || index >= size())
+				throw new IndexOutOfBoundsException("Line " + index + " of " + size());
+			
+			Chunk chunk = Chunk.find(chunks, start + index);
+			int i = (int) (start + index - chunk.first);
+			int from = chunk.start(i);
+			return new String(chunk.arena, from, chunk.ends[i] - from, MessageWriter.UTF8);
+		}
+		
+		@Override
+		public int size(){
+			return (int) (end - start);
+		}
+		
+		/**
+		 * first() gets the number of the first line in this snapshot.
+		 * 
+		 * @return the line number
+		 */
+		long first(){
+			return start;
+		}
+		
+		/**
+		 * writeLine() writes a line as MessageWriter.writeString() would, straight
+		 * from its UTF-8 bytes.
+		 * 
+		 * @param index the index of the line
+		 * @param writer the writer
+		 */
+		void writeLine(int index, MessageWriter writer){
+			Chunk chunk = Chunk.find(chunks, start + index);
+			int i = (int) (start + index - chunk.first);
+			int from = chunk.start(i);
+			writer.writeVarInt(chunk.ends[i] - from)
+				.writeBytes(chunk.arena, from, chunk.ends[i] - from);
+		}
+		
+		/**
+		 * firstSince() finds the first line in this snapshot added after the given
+		 * version.
+		 * 
+		 * @param since the version
+		 * @return the index of the line, or the size if there is none
+		 */
+		int firstSince(long since){
+			int low = 0;
+			int high = size();
+			while(low < high){
+				int mid = (low + high) >>> 1;
+				Chunk chunk = Chunk.find(chunks, start + mid);
+				if(chunk.versions.get((int) (start + mid - chunk.first)) <= since)
+					low = mid + 1;
+				else
+					high = mid;
+			}
+			return low;
+		}
 	}
 }
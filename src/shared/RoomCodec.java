@@ -0,0 +1,390 @@
+package shared;
+
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * RoomCodec encodes Rooms for the ROOM and ROOM_DELTA messages and decodes
+ * them on the other side. It replaces Java serialization of Rooms.
+ *
+ * A snapshot is the format version, the grid coordinates, epoch, version and
+ * size of the Room, the newest footstep time in the Room, the cells, then the
+ * chat lines. Cells are written as their age relative to the newest time, and
+ * laid out one of two ways: DENSE writes every cell (0 for a cell nobody has
+ * stepped on), and SPARSE writes a count and then, for each stepped on cell,
+ * the gap from the index of the one before and its age. Recent footsteps are
+ * small ages, so most cells take one or two bytes, and a quiet Room takes a
+ * few bytes in all. The chat lines are the number of the first line, the
+ * count and the lines.
+ *
+ * A snapshot may leave out footsteps older than a given time, which a client
+ * that no longer draws old footsteps does not need.
+ *
+ * A delta is the format version, the epoch, the version it starts from and the
+ * version it brings the Room to, the newest footstep time, the changed cells
+ * as their index and age, then the number of the first new chat line and the
+ * new lines.
+ *
+ * Rooms can change while they are encoded, so the encoder reads the version
+ * first and copies the cells before writing them; anything that changes after
+ * the version was read is sent again in the next delta.
+ *
+ * Snapshots and deltas carry only the newest SNAPSHOT_LINES chat lines, so
+ * they stay small however chatty a Room has been. Older lines are sent in
+ * pages on request: the format version, the epoch, the number of the first
+ * line, the count and the lines.
+ *
+ * @author Andy Katz
+ *
+ */
+public class RoomCodec {
+	public static final int FORMAT = 4;
+	/** Chat lines in a snapshot or delta */
+	public static final int SNAPSHOT_LINES = 20;
+	/** Most chat lines in a page of older history */
+	public static final int MAX_PAGE_LINES = 50;
+
+	//Layouts of the cells of a snapshot
+	static final int DENSE = 0;
+	static final int SPARSE = 1;
+
+	private RoomCodec(){
+	}
+
+	/**
+	 * encode() writes a snapshot of the Room into the current frame of the writer.
+	 *
+	 * @param room the Room
+	 * @param writer the writer
+	 */
+	public static void encode(Room room, MessageWriter writer){
+		encode(room, 0, writer);
+	}
+
+	/**
+	 * encode() writes a snapshot of the Room into the current frame of the writer,
+	 * leaving out footsteps older than the given time.
+	 *
+	 * @param room the Room
+	 * @param oldest the oldest footstep time to keep, 0 to keep all
+	 * @param writer the writer
+	 */
+	public static void encode(Room room, long oldest, MessageWriter writer){
+		encode(room, oldest, SNAPSHOT_LINES, writer);
+	}
+
+	/**
+	 * encode() writes a snapshot of the Room into the current frame of the writer,
+	 * leaving out footsteps older than the given time and all but the newest
+	 * chat lines.
+	 *
+	 * @param room the Room
+	 * @param oldest the oldest footstep time to keep, 0 to keep all
+	 * @param lines the most chat lines to keep
+	 * @param writer the writer
+	 */
+	public static void encode(Room room, long oldest, int lines, MessageWriter writer){
+		long version = room.getVersion();
+		int width = room.getWidth();
+		int height = room.getHeight();
+
+		long[] times = new long[width * height];
+		long newest = 0;
+		int live = 0;
+		for(int x = 0; x < width; x++){
+			for(int y = 0; y < height; y++){
+				long time = room.getTime(x, y);
+				if(time < oldest)
+					time = 0;
+				times[x * height + y] = time;
+				newest = Math.max(newest, time);
+				if(time != 0)
+					live++;
+			}
+		}
+
+		writer.writeVarInt(FORMAT)
+			.writeVarInt(room.getGridX())
+			.writeVarInt(room.getGridY())
+			.writeVarLong(room.getEpoch())
+			.writeVarLong(version)
+			.writeVarInt(width)
+			.writeVarInt(height)
+			.writeVarLong(newest);
+
+		//An index costs about as much as a cell, so sparse pays below half full
+		if(live * 2 < times.length){
+			writer.writeVarInt(SPARSE)
+				.writeVarInt(live);
+			int last = -1;
+			for(int i = 0; i < times.length; i++){
+				if(times[i] == 0)
+					continue;
+				writer.writeVarInt(i - last)
+					.writeVarLong(newest - times[i] + 1);
+				last = i;
+			}
+		}
+		else{
+			writer.writeVarInt(DENSE);
+			for(int i = 0; i < times.length; i++){
+				writer.writeVarLong(times[i] == 0 ? 0 : newest - times[i] + 1);
+			}
+		}
+
+		Room.History history = room.history();
+		int skip = Math.max(0, history.size() - lines);
+		writer.writeVarLong(history.first() + skip)
+			.writeVarInt(history.size() - skip);
+		for(int i = skip; i < history.size(); i++){
+			history.writeLine(i, writer);
+		}
+	}
+
+	/**
+	 * decode() reads a snapshot written by encode().
+	 *
+	 * @param reader the reader, positioned at the snapshot
+	 * @return the Room
+	 * @throws ProtocolException if the snapshot is malformed
+	 */
+	public static Room decode(MessageReader reader) throws ProtocolException{
+		readFormat(reader);
+
+		int gridX = reader.readVarInt();
+		int gridY = reader.readVarInt();
+		long epoch = reader.readVarLong();
+		long version = reader.readVarLong();
+		int width = reader.readVarInt();
+		int height = reader.readVarInt();
+		long newest = reader.readVarLong();
+		if(width <= 0 || height <= 0 || width > 1024 || height > 1024)
+			throw new ProtocolException("Bad room size " + width + "x" + height);
+
+		Room room = new Room(width * Room.TILE_SIZE, height * Room.TILE_SIZE, gridX, gridY);
+		int layout = reader.readVarInt();
+		if(layout == SPARSE){
+			int count = reader.readVarInt();
+			int cell = -1;
+			for(int i = 0; i < count; i++){
+				cell += reader.readVarInt();
+				long age = reader.readVarLong();
+				if(cell < 0 || cell >= width * height)
+					throw new ProtocolException("Bad cell " + cell);
+				room.updateTime(cell / height, cell % height, newest - age + 1);
+			}
+		}
+		else if(layout == DENSE){
+			if(width * height > reader.remaining())
+				throw new ProtocolException("Bad room size " + width + "x" + height);
+			for(int x = 0; x < width; x++){
+				for(int y = 0; y < height; y++){
+					long age = reader.readVarLong();
+					if(age != 0)
+						room.updateTime(x, y, newest - age + 1);
+				}
+			}
+		}
+		else{
+			throw new ProtocolException("Unknown cell layout " + layout);
+		}
+
+		long first = reader.readVarLong();
+		int lines = reader.readVarInt();
+		room.truncateHistory(first);
+		for(int i = 0; i < lines; i++){
+			room.addLine(reader.readString());
+		}
+
+		room.epoch = epoch;
+		room.syncedVersion = version;
+		return room;
+	}
+
+	/**
+	 * encodeDelta() writes the changes to the Room since the given version into the
+	 * current frame of the writer. Nothing is written if a delta cannot be made
+	 * or would not be worth it; a snapshot should be sent instead.
+	 *
+	 * @param room the Room
+	 * @param epoch the epoch of the copy the client holds
+	 * @param since the version of the copy the client holds
+	 * @param writer the writer
+	 * @return true if a delta was written
+	 */
+	public static boolean encodeDelta(Room room, long epoch, long since, MessageWriter writer){
+		long version = room.getVersion();
+		if(since <= 0 || epoch != room.getEpoch() || since > version)
+			return false;
+
+		int width = room.getWidth();
+		int height = room.getHeight();
+
+		int[] cells = new int[width * height];
+		long[] times = new long[width * height];
+		int changed = 0;
+		long newest = 0;
+		for(int x = 0; x < width; x++){
+			for(int y = 0; y < height; y++){
+				if(room.getCellVersion(x, y) > since){
+					cells[changed] = x * height + y;
+					times[changed] = room.getTime(x, y);
+					newest = Math.max(newest, times[changed]);
+					changed++;
+				}
+			}
+		}
+
+		//Past half the cells the indexes cost more than a snapshot
+		if(changed > width * height / 2)
+			return false;
+
+		writer.writeVarInt(FORMAT)
+			.writeVarLong(epoch)
+			.writeVarLong(since)
+			.writeVarLong(version)
+			.writeVarLong(newest)
+			.writeVarInt(changed);
+
+		for(int i = 0; i < changed; i++){
+			writer.writeVarInt(cells[i])
+				.writeVarLong(newest - times[i] + 1);
+		}
+
+		Room.History history = room.history();
+		int first = Math.max(history.firstSince(since), history.size() - SNAPSHOT_LINES);
+		writer.writeVarLong(history.first() + first)
+			.writeVarInt(history.size() - first);
+		for(int i = first; i < history.size(); i++){
+			history.writeLine(i, writer);
+		}
+		return true;
+	}
+
+	/**
+	 * applyDelta() applies a delta written by encodeDelta() to a copy of the Room.
+	 * Chat lines the copy has from the first new line on are replaced, so lines
+	 * the client added on its own are not doubled.
+	 *
+	 * @param reader the reader, positioned at the delta
+	 * @param room the copy of the Room
+	 * @return false if the delta is for another epoch of the Room
+	 * @throws ProtocolException if the delta is malformed
+	 */
+	public static boolean applyDelta(MessageReader reader, Room room) throws ProtocolException{
+		readFormat(reader);
+
+		long epoch = reader.readVarLong();
+		reader.readVarLong();
+		long version = reader.readVarLong();
+		long newest = reader.readVarLong();
+		if(epoch != room.getEpoch())
+			return false;
+
+		int width = room.getWidth();
+		int height = room.getHeight();
+		int changed = reader.readVarInt();
+		for(int i = 0; i < changed; i++){
+			int cell = reader.readVarInt();
+			long age = reader.readVarLong();
+			if(cell < 0 || cell >= width * height)
+				throw new ProtocolException("Bad cell " + cell);
+
+			room.updateTime(cell / height, cell % height, newest - age + 1);
+		}
+
+		long first = reader.readVarLong();
+		int lines = reader.readVarInt();
+		room.truncateHistory(first);
+		for(int i = 0; i < lines; i++){
+			room.addLine(reader.readString());
+		}
+
+		room.syncedVersion = Math.max(room.syncedVersion, version);
+		return true;
+	}
+
+	/**
+	 * encodeHistory() writes a page of the chat lines older than the given line
+	 * into the current frame of the writer.
+	 *
+	 * @param room the Room
+	 * @param before the number of the line after the page
+	 * @param count the most lines to write, capped at MAX_PAGE_LINES
+	 * @param writer the writer
+	 */
+	public static void encodeHistory(Room room, long before, int count, MessageWriter writer){
+		Room.History history = room.history();
+		long end = Math.max(history.first(), Math.min(before, history.first() + history.size()));
+		long start = Math.max(history.first(), end - Math.max(0, Math.min(count, MAX_PAGE_LINES)));
+
+		writer.writeVarInt(FORMAT)
+			.writeVarLong(room.getEpoch())
+			.writeVarLong(start)
+			.writeVarInt((int) (end - start));
+		for(long n = start; n < end; n++){
+			history.writeLine((int) (n - history.first()), writer);
+		}
+	}
+
+	/**
+	 * encodeHistory() writes a page of chat lines kept somewhere other than the
+	 * Room into the current frame of the writer.
+	 *
+	 * @param epoch the epoch of the Room
+	 * @param first the number of the first line
+	 * @param lines the lines
+	 * @param writer the writer
+	 */
+	public static void encodeHistory(long epoch, long first, List<String> lines, MessageWriter writer){
+		writer.writeVarInt(FORMAT)
+			.writeVarLong(epoch)
+			.writeVarLong(first)
+			.writeVarInt(lines.size());
+		for(String line : lines){
+			writer.writeString(line);
+		}
+	}
+
+	/**
+	 * applyHistory() adds a page written by encodeHistory() to a copy of the Room,
+	 * before the lines it already has.
+	 *
+	 * @param reader the reader, positioned at the page
+	 * @param room the copy of the Room
+	 * @return false if the page is for another epoch of the Room
+	 * @throws ProtocolException if the page is malformed
+	 */
+	public static boolean applyHistory(MessageReader reader, Room room) throws ProtocolException{
+		readFormat(reader);
+
+		long epoch = reader.readVarLong();
+		long first = reader.readVarLong();
+		int count = reader.readVarInt();
+		if(count < 0 || count > reader.remaining())
+			throw new ProtocolException("Bad line count " + count);
+
+		List<String> lines = new ArrayList<String>(count);
+		for(int i = 0; i < count; i++){
+			lines.add(reader.readString());
+		}
+		if(epoch != room.getEpoch())
+			return false;
+
+		room.prependHistory(first, lines);
+		return true;
+	}
+
+	/**
+	 * readFormat() is a private helper that checks the format version.
+	 *
+	 * @param reader the reader
+	 * @throws ProtocolException if the format is unknown
+	 */
+	private static void readFormat(MessageReader reader) throws ProtocolException{
+		int format = reader.readVarInt();
+		if(format != FORMAT)
+			throw new ProtocolException("Unknown room format " + format);
+	}
+}
@@ -0,0 +1,185 @@
+package shared;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+
+public class RoomCodecTest {
+
+	/**
+	 * Tests that a Room survives being encoded and decoded.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void RoundTrip() throws Exception{
+		Room room = new Room(640, 480, 4, 7);
+		room.updateTime(0, 0, 1365000000000L);
+		room.updateTime(19, 14, 1365000004000L);
+		room.addLine("andy: hi");
+		room.addLine("drew: hello");
+
+		Room copy = decode(encode(room));
+
+		assertEquals(4, copy.getGridX());
+		assertEquals(7, copy.getGridY());
+		assertEquals(room.getWidth(), copy.getWidth());
+		assertEquals(room.getHeight(), copy.getHeight());
+		assertEquals(1365000000000L, copy.getTime(0, 0));
+		assertEquals(1365000004000L, copy.getTime(19, 14));
+		assertEquals(0, copy.getTime(5, 5));
+		assertEquals(room.getHistory(), copy.getHistory());
+		assertEquals(room.getFirstLine(), copy.getFirstLine());
+	}
+
+	/**
+	 * Tests that an empty Room encodes to about a byte per cell.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void EmptyRoomIsSmall() throws Exception{
+		Room room = new Room(640, 480, 0, 0);
+		assertTrue(encode(room).remaining() < 20 * 15 + 32);
+	}
+
+	/**
+	 * Tests that footsteps older than the window are left out, and that the
+	 * rest are sent as a short sparse list.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void Window() throws Exception{
+		Room room = new Room(640, 480, 0, 0);
+		room.updateTime(1, 1, 1000);
+		room.updateTime(2, 2, 50000);
+		room.updateTime(19, 14, 52000);
+
+		MessageWriter writer = new MessageWriter();
+		writer.begin(Protocol.ROOM);
+		RoomCodec.encode(room, 42000, writer);
+		ByteBuffer frame = writer.toByteBuffer();
+		assertTrue(frame.remaining() < 32);
+
+		Room copy = decode(frame);
+		assertEquals(0, copy.getTime(1, 1));
+		assertEquals(50000, copy.getTime(2, 2));
+		assertEquals(52000, copy.getTime(19, 14));
+	}
+
+	/**
+	 * Tests that a full Room is still sent a cell at a time.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void Dense() throws Exception{
+		Room room = new Room(640, 480, 0, 0);
+		for(int x = 0; x < room.getWidth(); x++){
+			for(int y = 0; y < room.getHeight(); y++){
+				room.updateTime(x, y, 1000 + x * 100 + y);
+			}
+		}
+
+		Room copy = decode(encode(room));
+		assertEquals(1000, copy.getTime(0, 0));
+		assertEquals(1000 + 1900 + 14, copy.getTime(19, 14));
+	}
+
+	/**
+	 * Tests that a delta brings an old copy up to date without doubling chat lines.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void Delta() throws Exception{
+		Room room = new Room(640, 480, 1, 1);
+		room.updateTime(2, 3, 1000);
+		room.addLine("andy: hi");
+		Room copy = decode(encode(room));
+		long since = copy.getSyncedVersion();
+
+		room.updateTime(2, 3, 2000);
+		room.updateTime(4, 5, 1500);
+		room.addLine("drew: hello");
+		copy.addLine("drew: hello");
+
+		MessageWriter writer = new MessageWriter();
+		writer.begin(Protocol.ROOM_DELTA);
+		assertTrue(RoomCodec.encodeDelta(room, copy.getEpoch(), since, writer));
+		MessageReader reader = new MessageReader();
+		reader.readFrame(new ByteArrayInputStream(writer.toByteBuffer().array()), Protocol.MAX_SERVER_FRAME);
+		assertTrue(RoomCodec.applyDelta(reader, copy));
+
+		assertEquals(2000, copy.getTime(2, 3));
+		assertEquals(1500, copy.getTime(4, 5));
+		assertEquals(room.getHistory(), copy.getHistory());
+		assertEquals(room.getVersion(), copy.getSyncedVersion());
+	}
+
+	/**
+	 * Tests that no delta is made for a copy from another epoch.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void DeltaOtherEpoch() throws Exception{
+		Room room = new Room(640, 480, 1, 1);
+		room.updateTime(2, 3, 1000);
+
+		MessageWriter writer = new MessageWriter();
+		writer.begin(Protocol.ROOM_DELTA);
+		assertFalse(RoomCodec.encodeDelta(room, room.getEpoch() + 1, 1, writer));
+	}
+
+	/**
+	 * Tests that a snapshot carries only the newest lines, and that older lines
+	 * are paged in before them, but only for the same epoch.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void HistoryPages() throws Exception{
+		Room room = new Room(640, 480, 1, 1);
+		for(int i = 0; i < 100; i++){
+			room.addLine("line " + i);
+		}
+		Room copy = decode(encode(room));
+		assertEquals(RoomCodec.SNAPSHOT_LINES, copy.getHistory().size());
+		assertEquals(100 - RoomCodec.SNAPSHOT_LINES, copy.getFirstLine());
+
+		MessageWriter writer = new MessageWriter();
+		writer.begin(Protocol.HISTORY);
+		RoomCodec.encodeHistory(room, copy.getFirstLine(), 30, writer);
+		MessageReader reader = new MessageReader();
+		reader.readFrame(new ByteArrayInputStream(writer.toByteBuffer().array()), Protocol.MAX_SERVER_FRAME);
+		assertTrue(RoomCodec.applyHistory(reader, copy));
+		assertEquals(50, copy.getFirstLine());
+		assertEquals(room.getHistory().subList(50, 100), copy.getHistory());
+
+		Room other = decode(encode(new Room(640, 480, 1, 1)));
+		writer.begin(Protocol.HISTORY);
+		RoomCodec.encodeHistory(room, 50, 30, writer);
+		reader.readFrame(new ByteArrayInputStream(writer.toByteBuffer().array()), Protocol.MAX_SERVER_FRAME);
+		assertFalse(RoomCodec.applyHistory(reader, other));
+		assertEquals(0, other.getHistory().size());
+	}
+
+	private ByteBuffer encode(Room room){
+		MessageWriter writer = new MessageWriter();
+		writer.begin(Protocol.ROOM);
+		RoomCodec.encode(room, writer);
+		return writer.toByteBuffer();
+	}
+
+	private Room decode(ByteBuffer frame) throws Exception{
+		MessageReader reader = new MessageReader();
+		reader.readFrame(new ByteArrayInputStream(frame.array()), Protocol.MAX_SERVER_FRAME);
+		return RoomCodec.decode(reader);
+	}
+
+}
@@ -1,6 +1,8 @@
 package shared;
 import static org.junit.Assert.*;
 
+import java.util.List;
+
 import org.junit.Test;
 
 
@@ -38,5 +40,146 @@ public class RoomTest {
 		room.updateTime(0, 481, 3);
 		assertEquals(0, room.getTime(0, 481));
 	}
+	
+	/**
+	 * Tests that real times are kept exactly, that the base moves for times past
+	 * its range, and that footsteps from before the range are kept as its start.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void Rebase() throws Exception{
+		Room room = new Room(640, 480, 0, 0);
+		long now = 1792328240558L;
+		long day = 24 * 60 * 60 * 1000L;
+		assertTrue(room.updateTime(1, 1, now));
+		assertEquals(now, room.getTime(1, 1));
+		assertTrue(room.updateTime(1, 2, now - day));
+		assertEquals(now - day, room.getTime(1, 2));
+		
+		//Twenty days is still in the range
+		assertTrue(room.updateTime(2, 1, now + 20 * day));
+		assertEquals(now, room.getTime(1, 1));
+		
+		long later = now + 30 * day;
+		long version = room.getVersion();
+		assertTrue(room.updateTime(2, 2, later));
+		assertEquals(later, room.getTime(2, 2));
+		assertEquals(now + 20 * day, room.getTime(2, 1));
+		assertEquals(version + 1, room.getVersion());
+		
+		//Thirty days before the newest time is now before the range
+		assertEquals(later - 0xFFFFFFFFL / 2, room.getTime(1, 1));
+		assertEquals(later - 0xFFFFFFFFL / 2, room.getTime(1, 2));
+		assertFalse(room.updateTime(1, 2, now - 50 * day));
+		assertTrue(room.updateTime(3, 3, now - 50 * day));
+		assertEquals(later - 0xFFFFFFFFL / 2, room.getTime(3, 3));
+	}
+	
+	/**
+	 * Tests that a footstep from a clock far ahead is clamped, so it does not
+	 * move the base and age the other cells, and later footsteps still raise
+	 * their cells.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void FarFuture() throws Exception{
+		Room room = new Room(640, 480, 0, 0);
+		long now = 1792328240558L;
+		long day = 24 * 60 * 60 * 1000L;
+		assertTrue(room.updateTime(1, 1, Room.clampTime(now, now)));
+		assertTrue(room.updateTime(1, 2, Room.clampTime(now - day, now)));
+		
+		assertTrue(room.updateTime(2, 2, Room.clampTime(now + 100 * day, now)));
+		assertEquals(now + Room.MAX_AHEAD, room.getTime(2, 2));
+		assertEquals(now, room.getTime(1, 1));
+		assertEquals(now - day, room.getTime(1, 2));
+		assertEquals(0, room.getTime(3, 3));
+		
+		assertTrue(room.updateTime(1, 1, Room.clampTime(now + 1000, now + 1000)));
+		assertEquals(now + 1000, room.getTime(1, 1));
+		
+		//Too old to keep exactly
+		assertEquals(0, Room.clampTime(now - 30 * day, now));
+		assertFalse(room.updateTime(3, 3, Room.clampTime(now - 30 * day, now)));
+	}
+	
+	/**
+	 * Tests that the chat history keeps only the newest lines, by count and by
+	 * bytes, that lines keep their numbers, and that truncating keeps older
+	 * snapshots as they were.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void BoundedHistory() throws Exception{
+		Room room = new Room(640, 480, 0, 0, 100, 1000);
+		for(int i = 0; i < 250; i++){
+			room.addLine("line " + i);
+		}
+		assertEquals(100, room.getHistory().size());
+		assertEquals(150, room.getFirstLine());
+		assertEquals("line 150", room.getHistory().get(0));
+		assertEquals("line 249", room.getHistory().get(99));
+		
+		//Past 1000 bytes, fewer lines are kept
+		String big = "\u00e9t\u00e9 " + new String(new char[400]).replace('\0', 'x');
+		room.addLine(big);
+		room.addLine(big);
+		room.addLine(big);
+		assertEquals(big, room.getHistory().get(room.getHistory().size() - 1));
+		assertEquals(2, room.getHistory().size());
+		assertEquals(253, room.getFirstLine() + room.getHistory().size());
+		
+		List<String> before = room.getHistory();
+		room.truncateHistory(252);
+		assertEquals(big, before.get(before.size() - 1));
+		assertEquals(252, room.getFirstLine() + room.getHistory().size());
+		room.addLine("after");
+		assertEquals("after", room.getHistory().get(room.getHistory().size() - 1));
+		
+		room.truncateHistory(400);
+		assertEquals(0, room.getHistory().size());
+		assertEquals(400, room.getFirstLine());
+	}
+	
+	/**
+	 * Tests that footsteps and lines added from many threads at once are all kept,
+	 * and that the newest time of a cell wins.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void Concurrent() throws Exception{
+		final Room room = new Room(640, 480, 0, 0, 1000, 64 * 1024);
+		final Thread[] threads = new Thread[4];
+		for(int t = 0; t < threads.length; t++){
+			final int offset = t;
+			threads[t] = new Thread(){
+				public void run(){
+					for(int i = 1; i <= 1000; i++){
+						room.updateTime(0, 0, i * threads.length + offset);
+						room.updateTime(offset, 1, i);
+						if(i % 10 == 0)
+							room.addLine(offset + ":" + i);
+					}
+				}
+			};
+		}
+		for(Thread thread : threads)
+			thread.start();
+		for(Thread thread : threads)
+			thread.join();
+		
+		assertEquals(1000 * threads.length + threads.length - 1, room.getTime(0, 0));
+		for(int t = 0; t < threads.length; t++){
+			assertEquals(1000, room.getTime(t, 1));
+			assertTrue(room.getCellVersion(t, 1) <= room.getVersion());
+		}
+		assertEquals(100 * threads.length, room.getHistory().size());
+		assertEquals(0, room.firstLineSince(0));
+		assertEquals(room.getHistory().size(), room.firstLineSince(room.getVersion()));
+	}
 
 }